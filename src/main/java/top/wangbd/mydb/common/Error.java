@@ -6,12 +6,16 @@ public class Error {
     public static final Exception FileExistsException = new RuntimeException("File already exists!");
     public static final Exception FileNotExistsException = new RuntimeException("File does not exists!");
     public static final Exception FileCannotRWException = new RuntimeException("File cannot read or write!");
+    public static final Exception InvalidPolicyException = new RuntimeException("Invalid cache replacement policy!");
+    public static final Exception InvalidPartitionsException = new RuntimeException("Invalid page cache partition count!");
+    public static final Exception InvalidSegmentException = new RuntimeException("Invalid data file segment config!");
+    public static final Exception BadDataSegmentException = new RuntimeException("Bad data file segment!");
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
+    public static final Exception LogVersionMismatchException = new RuntimeException("Unsupported log file version!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
-    public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
-    public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception BadPageChecksumException = new RuntimeException("Bad page checksum!");
 
 
     // tm
@@ -2,7 +2,10 @@ package top.wangbd.mydb.server;
 
 import org.apache.commons.cli.*;
 import top.wangbd.mydb.common.Error;
+import top.wangbd.mydb.server.common.AbstractCache;
+import top.wangbd.mydb.server.common.ReplacementPolicy;
 import top.wangbd.mydb.server.dm.DataManager;
+import top.wangbd.mydb.server.dm.pageCache.PageCacheConfig;
 import top.wangbd.mydb.server.server.Server;
 import top.wangbd.mydb.server.tbm.TableManager;
 import top.wangbd.mydb.server.tm.TransactionManager;
@@ -39,16 +42,23 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("policy", true, "-policy lru|2q");
+        options.addOption("mmap", false, "-mmap");
+        options.addOption("partitions", true, "-partitions 16");
+        options.addOption("segsize", true, "-segsize 1GB");
+        options.addOption("segdirs", true, "-segdirs dir1,dir2");
+        options.addOption("warmup", false, "-warmup");
+        options.addOption("pagechecksum", false, "-pagechecksum");
         options.addOption("delete", true, "-delete DBPath"); // 新增删除选项
         // 创建命令行解析器实例
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseConfig(cmd));
             return;
         }
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseConfig(cmd));
             return;
         }
         if(cmd.hasOption("delete")) {
@@ -58,8 +68,25 @@ public class Launcher {
 
     }
 
+    /** 根据命令行选项构造页面缓存配置，创建和打开数据库使用同样的选项 */
+    private static PageCacheConfig parseConfig(CommandLine cmd) {
+        PageCacheConfig config = new PageCacheConfig(parseMem(cmd.getOptionValue("mem")));
+        config.policy = parsePolicy(cmd.getOptionValue("policy"));
+        config.mmap = cmd.hasOption("mmap");
+        config.partitions = parsePartitions(cmd.getOptionValue("partitions"));
+        if(cmd.hasOption("segsize")) {
+            config.segmentSize = parseMem(cmd.getOptionValue("segsize"));
+        }
+        if(cmd.hasOption("segdirs")) {
+            config.segmentDirs = cmd.getOptionValue("segdirs").split(",");
+        }
+        config.warmUp = cmd.hasOption("warmup");
+        config.pageChecksum = cmd.hasOption("pagechecksum");
+        return config;
+    }
+
     /** 创建数据库 */
-    private static void createDB(String path) {
+    private static void createDB(String path, PageCacheConfig config) {
         // 检查路径是否存在
         File directory = new File(path);
         if (!directory.exists()) {
@@ -71,15 +98,16 @@ public class Launcher {
         // 获取数据库文件应当存放的目录，文件名跟所在的目录名一致: C:\mydb\data\db1\db1[.xxx]
         String dbFilePath = path+File.separator+path.substring(path.lastIndexOf(File.separator)+1);
         TransactionManager tm = TransactionManager.create(dbFilePath);
-        DataManager dm = DataManager.create(dbFilePath, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(dbFilePath, config, tm);
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager.create(dbFilePath, vm, dm);
+        TableManager tbm = TableManager.create(dbFilePath, vm, dm);
+        tbm.close();
         tm.close();
         dm.close();
     }
 
     /** 打开数据库 */
-    private static void openDB(String path, long mem) throws IOException {
+    private static void openDB(String path, PageCacheConfig config) throws IOException {
         // 1.检查路径是否存在
         File directory = new File(path);
         if (!directory.exists()) {
@@ -92,11 +120,13 @@ public class Launcher {
         // 读取.xid文件，构造TransactionManager
         TransactionManager tm = TransactionManager.open(dbFilePath);
         // 读取.db和.log文件，构造DataManager
-        DataManager dm = DataManager.open(dbFilePath, mem, tm);
+        DataManager dm = DataManager.open(dbFilePath, config, tm);
         // 构造VersionManager
         VersionManager vm = new VersionManagerImpl(tm, dm);
         // 读取.bt文件，构造TableManager
         TableManager tbm = TableManager.open(dbFilePath, vm, dm);
+        // 进程退出时先停止后台清理，避免它在退出过程中继续读写页面
+        Runtime.getRuntime().addShutdownHook(new Thread(tbm::close));
 
         // 2.通过共享内存在客户端和服务端之间传递数据库连接状态
         // 2.1 创建或获取共享内存文件
@@ -143,7 +173,7 @@ public class Launcher {
             System.err.println("数据库路径不存在: " + path);
             return;
         }
-        System.out.println("即将删除数据库路径: " + path + " 下的以下类型文件: bt, db, log, xid");
+        System.out.println("即将删除数据库路径: " + path + " 下的以下类型文件: bt, db, log, xid, cp, warm, fsm");
         System.out.println("请确认是否继续... (Y/N)");
         Scanner scanner = new Scanner(System.in);
         String confirmation = scanner.nextLine().toUpperCase();
@@ -152,7 +182,7 @@ public class Launcher {
             return;
         }
 
-        List<String> fileExtensions = Arrays.asList("bt", "db", "log", "xid");
+        List<String> fileExtensions = Arrays.asList("bt", "db", "log", "xid", "cp", "warm", "fsm");
         deleteFiles(directory, fileExtensions);
     }
 
@@ -167,7 +197,9 @@ public class Launcher {
                         int lastIndex = fileName.lastIndexOf('.');
                         if (lastIndex > 0) {
                             String extension = fileName.substring(lastIndex + 1);
-                            if (fileExtensions.contains(extension)) {
+                            // 日志按段存放，段文件名是 xxx.log.[FirstLsn]
+                            boolean logSegment = fileName.matches(".*\\.log\\.[0-9a-f]{16}");
+                            if (fileExtensions.contains(extension) || logSegment) {
                                 System.out.println("正在删除文件: " + file.getAbsolutePath());
                                 if (!file.delete()) {
                                     System.err.println("无法删除文件: " + file.getAbsolutePath());
@@ -181,6 +213,30 @@ public class Launcher {
             }
         }
     }
+    /** 解析页面置换策略参数 */
+    private static String parsePolicy(String policy) {
+        if(policy == null || "".equals(policy)) {
+            return ReplacementPolicy.LRU;
+        }
+        policy = policy.toLowerCase();
+        if(!ReplacementPolicy.LRU.equals(policy) && !ReplacementPolicy.TWO_QUEUE.equals(policy)) {
+            Panic.panic(Error.InvalidPolicyException);
+        }
+        return policy;
+    }
+
+    /** 解析页面缓存分区数参数 */
+    private static int parsePartitions(String partitions) {
+        if(partitions == null || "".equals(partitions)) {
+            return AbstractCache.DEFAULT_SEGMENTS;
+        }
+        int n = Integer.parseInt(partitions);
+        if(n <= 0) {
+            Panic.panic(Error.InvalidPartitionsException);
+        }
+        return n;
+    }
+
     /** 解析内存参数 */
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
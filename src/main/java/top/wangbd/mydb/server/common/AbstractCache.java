@@ -2,74 +2,182 @@ package top.wangbd.mydb.server.common;
 
 import top.wangbd.mydb.common.Error;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ * <p>
+ * 有容量上限（maxResource > 0）的缓存作为缓冲池使用：引用计数归零的资源不会立刻被清除，
+ * 而是继续驻留在缓存中，直到缓存满时才按置换策略（默认 LRU，见 ReplacementPolicy）被驱逐；
+ * 若所有资源都被引用，请求方会短暂等待。
+ * 没有容量上限的缓存无法驱逐，引用计数归零时仍然立即清除。
+ * </p>
+ * <p>
+ * 缓存按 key 的哈希值分成若干段，每段有独立的锁和数据结构，不同段上的访问互不阻塞。
+ * 容量上限对所有段共享，置换策略在段内维护，缓存满时优先驱逐本段的资源，再依次尝试其他段。
+ * 分段数可以配置，每段分别统计命中、未命中和驱逐次数。
+ * </p>
  */
 public abstract class AbstractCache<T> {
-    // {key,data}，key是资源data的唯一标识符。data是实际缓存的数据
-    private HashMap<Long, T> cache;
-    //{key,num},key是资源data的唯一标识符，num是该资源的引用个数
-    private HashMap<Long, Integer> references;
-    //{key,isUse}，标记哪些资源当前正在从数据源中获取。
-    // 避免高并发情况下的多个线程同时从数据库中重建资源
-    private HashMap<Long, Boolean> getting;
-
-    private int maxResource;   // 缓存的最大缓存资源数
-    private int count = 0;     // 缓存中元素的个数
-    private Lock lock;
+    // 所有资源都被引用时，获取资源的最长等待时间（毫秒）
+    private static final long PIN_WAIT_TIMEOUT = 1000;
+    // 默认分段数
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private Segment<T>[] segments;
+    private int segmentMask;        // 分段数减一，分段数总是2的幂
+
+    private int maxResource;        // 缓存的最大缓存资源数
+    private AtomicInteger count;    // 缓存中元素的个数（包括正在获取的资源）
+
+    private Lock waitLock;          // 仅用于等待资源释放
+    private Condition unpinCond;    // 有资源的引用计数归零时发出通知
+    private AtomicInteger waiters;  // 正在等待资源释放的线程数
+
+    private LongAdder pinWaits;     // 因所有资源都被引用而等待的次数
+    private LongAdder cacheFulls;   // 等待超时抛出CacheFullException的次数
+
+    /**
+     * 缓存的一段，段内的数据结构都由该段的锁保护
+     */
+    private static class Segment<T> {
+        Lock lock = new ReentrantLock();
+        // {key,data}，key是资源data的唯一标识符。data是实际缓存的数据
+        HashMap<Long, T> cache = new HashMap<>();
+        //{key,num},key是资源data的唯一标识符，num是该资源的引用个数
+        HashMap<Long, Integer> references = new HashMap<>();
+        //{key,future}，记录哪些资源当前正在从数据源中获取。
+        // 避免高并发情况下的多个线程同时从数据库中重建资源，其他线程等待该future完成即可。
+        // 正在写回的被驱逐资源也登记在这里，写回完成前不会从数据源读到旧的数据
+        HashMap<Long, CompletableFuture<T>> getting = new HashMap<>();
+        // 决定段内驱逐哪一个引用计数为0但仍驻留的资源
+        ReplacementPolicy policy;
+        // 段内的统计
+        long hits;
+        long misses;
+        long evictions;
+
+        Segment(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+    }
 
     public AbstractCache(int maxResource) {
+        this(maxResource, ReplacementPolicy.LRU);
+    }
+
+    public AbstractCache(int maxResource, String policy) {
+        this(maxResource, policy, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxResource 缓存的最大缓存资源数，0表示没有上限
+     * @param policy 置换策略名称，见 ReplacementPolicy
+     * @param segmentCount 分段数，向上取整为2的幂
+     */
+    public AbstractCache(int maxResource, String policy, int segmentCount) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        int n = 1;
+        while(n < segmentCount) {
+            n <<= 1;
+        }
+        @SuppressWarnings("unchecked")
+        Segment<T>[] segs = (Segment<T>[]) new Segment<?>[n];
+        segments = segs;
+        segmentMask = n - 1;
+        int segmentCapacity = Math.max(1, maxResource / n);
+        for (int i = 0; i < n; i ++) {
+            segments[i] = new Segment<>(ReplacementPolicy.create(policy, segmentCapacity));
+        }
+        count = new AtomicInteger(0);
+        waitLock = new ReentrantLock();
+        unpinCond = waitLock.newCondition();
+        waiters = new AtomicInteger(0);
+        pinWaits = new LongAdder();
+        cacheFulls = new LongAdder();
+    }
+
+    /** 根据key选择所在的段 */
+    private Segment<T> segmentFor(long key) {
+        return segments[segmentIndex(key)];
+    }
+
+    /** key所在段的下标，子类可以据此为每段准备独立的资源 */
+    protected int segmentIndex(long key) {
+        int h = (int)(key ^ (key >>> 32));
+        h *= 0x9E3779B9;
+        return (h ^ (h >>> 16)) & segmentMask;
+    }
+
+    /** 分段数 */
+    protected int segmentCount() {
+        return segments.length;
     }
 
     /**
      * get：从缓存中获取数据
      */
     protected T get(long key) throws Exception {
+        Segment<T> seg = segmentFor(key);
+        long deadline = System.currentTimeMillis() + PIN_WAIT_TIMEOUT;
+        CompletableFuture<T> loading;
         // 尝试从缓存中获取资源，或者获得从数据源中获取资源的资格（getting）
         while(true) {
-            lock.lock();
-            if(getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+            CompletableFuture<T> inFlight;
+            seg.lock.lock();
+            try {
+                // 若存在于缓存中，直接返回，并且引用数加一
+                T obj = pin(seg, key);
+                if(obj != null) {
+                    seg.hits ++;
+                    return obj;
                 }
-                continue;
+                inFlight = seg.getting.get(key);
+            } finally {
+                seg.lock.unlock();
             }
 
-            // 若存在于缓存中，直接返回，并且引用数加一
-            if(cache.containsKey(key)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+            if(inFlight != null) {
+                // 请求的资源正在被其他线程获取，等待其完成后重新尝试；获取失败时抛出同样的异常
+                awaitLoad(inFlight);
+                continue;
             }
 
-            // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
+            // 资源不在缓存中，先占用一个容量名额（不持有段锁，驱逐时可能需要获取其他段的锁）
+            try {
+                reserve(key, deadline);
+            } catch(Exception e) {
+                cacheFulls.increment();
+                throw e;
             }
 
-            // 获得从数据源中获取资源的资格（插入到getting中）
-            count ++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
+            seg.lock.lock();
+            try {
+                // 占用名额期间资源可能已被其他线程加载，此时归还名额重新尝试
+                if(seg.getting.containsKey(key) || seg.cache.containsKey(key)) {
+                    unreserve();
+                    continue;
+                }
+                // 获得从数据源中获取资源的资格（插入到getting中）
+                loading = new CompletableFuture<>();
+                seg.getting.put(key, loading);
+                seg.misses ++;
+                break;
+            } finally {
+                seg.lock.unlock();
+            }
         }
 
         T obj = null;
@@ -77,69 +185,448 @@ public abstract class AbstractCache<T> {
             // 从数据源中获取资源
             obj = getForCache(key);
         } catch(Exception e) {
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();
+            seg.getting.remove(key);
+            seg.lock.unlock();
+            unreserve();
+            loading.completeExceptionally(e);
             throw e;
         }
 
-        // 将获取到的资源放入缓存，引用数加一
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        // 将获取到的资源放入缓存，引用数加一，再唤醒等待该资源的线程
+        seg.lock.lock();
+        seg.getting.remove(key);
+        seg.cache.put(key, obj);
+        seg.references.put(key, 1);
+        if(maxResource > 0) {
+            seg.policy.admit(key);
+        }
+        seg.lock.unlock();
+        loading.complete(obj);
 
         return obj;
     }
 
+    /** 等待其他线程完成资源的获取，若获取失败则抛出获取时的异常 */
+    private void awaitLoad(CompletableFuture<T> inFlight) throws Exception {
+        try {
+            inFlight.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /** 若资源在段中，引用数加一并返回，否则返回null。调用方需持有段锁 */
+    private T pin(Segment<T> seg, long key) {
+        T obj = seg.cache.get(key);
+        if(obj == null) {
+            return null;
+        }
+        int ref = seg.references.get(key);
+        if(maxResource > 0) {
+            if(ref == 0) {
+                seg.policy.pin(key);
+            }
+            seg.policy.access(key);
+        }
+        seg.references.put(key, ref + 1);
+        return obj;
+    }
+
+    /**
+     * 占用一个容量名额。缓存满时先尝试驱逐未被引用的资源，所有资源都被引用时等待其他线程释放，
+     * 超过等待时间仍无法占用则抛出CacheFullException
+     */
+    private void reserve(long key, long deadline) throws Exception {
+        if(maxResource <= 0) {
+            count.incrementAndGet();
+            return;
+        }
+        while(true) {
+            int c = count.get();
+            if(c < maxResource) {
+                if(count.compareAndSet(c, c + 1)) {
+                    return;
+                }
+                continue;
+            }
+            if(evictAny(segmentIndex(key))) {
+                continue;
+            }
+
+            long remain = deadline - System.currentTimeMillis();
+            if(remain <= 0) {
+                throw Error.CacheFullException;
+            }
+            pinWaits.increment();
+            waitLock.lock();
+            waiters.incrementAndGet();
+            try {
+                // 重新检查一次，避免在登记等待之前错过通知
+                if(count.get() >= maxResource && !hasUnpinned()) {
+                    unpinCond.await(remain, TimeUnit.MILLISECONDS);
+                }
+            } finally {
+                waiters.decrementAndGet();
+                waitLock.unlock();
+            }
+        }
+    }
+
+    /** 归还一个容量名额 */
+    private void unreserve() {
+        count.decrementAndGet();
+        signalWaiters();
+    }
+
+    /** 唤醒等待资源释放的线程 */
+    private void signalWaiters() {
+        if(waiters.get() == 0) {
+            return;
+        }
+        waitLock.lock();
+        try {
+            unpinCond.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /** 是否存在可以驱逐的资源 */
+    private boolean hasUnpinned() {
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                if(seg.policy.hasEvictable()) {
+                    return true;
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从第from段开始依次在各段中驱逐一个未被引用的资源，没有可驱逐的资源时返回false。
+     * 被驱逐的资源在段锁外写回，写回期间在getting中登记，其他线程获取它时等待写回完成后再从数据源读取
+     */
+    private boolean evictAny(int from) {
+        for (int i = 0; i < segments.length; i ++) {
+            Segment<T> seg = segments[(from + i) & segmentMask];
+            Long victim;
+            T obj;
+            CompletableFuture<T> writing;
+            seg.lock.lock();
+            try {
+                victim = seg.policy.evict();
+                if(victim == null) {
+                    continue;
+                }
+                obj = seg.cache.remove(victim);
+                seg.references.remove(victim);
+                writing = new CompletableFuture<>();
+                seg.getting.put(victim, writing);
+                seg.evictions ++;
+            } finally {
+                seg.lock.unlock();
+            }
+
+            try {
+                releaseForCache(obj);
+            } finally {
+                seg.lock.lock();
+                seg.getting.remove(victim);
+                seg.lock.unlock();
+                writing.complete(null);
+                count.decrementAndGet();
+            }
+            return true;
+        }
+        return false;
+    }
+
     /**
-     * 减少引用计数,当引用计数归零时从缓存中清除
+     * 减少引用计数。引用计数归零时，有容量上限的缓存保留该资源等待驱逐，否则立即从缓存中清除
      */
     protected void release(long key) {
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        boolean unpinned = false;
+        seg.lock.lock();
         try{
-            int ref = references.get(key)-1;
-            if(ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count --;
+            int ref = seg.references.get(key)-1;
+            if(ref > 0) {
+                seg.references.put(key, ref);
+            } else if(maxResource > 0) {
+                seg.references.put(key, 0);
+                seg.policy.unpin(key);
+                unpinned = true;
             } else {
-                references.put(key, ref);
+                T obj = seg.cache.get(key);
+                releaseForCache(obj);
+                seg.references.remove(key);
+                seg.cache.remove(key);
+                count.decrementAndGet();
+            }
+        } finally {
+            seg.lock.unlock();
+        }
+        if(unpinned) {
+            signalWaiters();
+        }
+    }
+
+    /**
+     * 预先把资源加载进缓存但不引用它，用于预读。资源已在缓存中或正在被获取时直接返回；
+     * 缓存满且没有可驱逐的资源时放弃，不会等待。只对有容量上限的缓存有效
+     */
+    protected void prefetch(long key) {
+        if(maxResource <= 0) {
+            return;
+        }
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            if(seg.cache.containsKey(key) || seg.getting.containsKey(key)) {
+                return;
+            }
+        } finally {
+            seg.lock.unlock();
+        }
+        try {
+            reserve(key, System.currentTimeMillis());
+        } catch (Exception e) {
+            return;
+        }
+
+        CompletableFuture<T> loading;
+        seg.lock.lock();
+        try {
+            if(seg.cache.containsKey(key) || seg.getting.containsKey(key)) {
+                unreserve();
+                return;
             }
+            loading = new CompletableFuture<>();
+            seg.getting.put(key, loading);
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
         }
+
+        T obj;
+        try {
+            obj = getForCache(key);
+        } catch(Exception e) {
+            seg.lock.lock();
+            seg.getting.remove(key);
+            seg.lock.unlock();
+            unreserve();
+            loading.completeExceptionally(e);
+            return;
+        }
+
+        // 加载完成的资源引用计数为0，可以直接被驱逐
+        seg.lock.lock();
+        seg.getting.remove(key);
+        seg.cache.put(key, obj);
+        seg.references.put(key, 0);
+        seg.policy.admit(key);
+        seg.policy.unpin(key);
+        seg.lock.unlock();
+        loading.complete(obj);
+        signalWaiters();
+    }
+
+    /**
+     * 返回当前驻留且满足条件的所有资源的key，不钉住资源
+     */
+    protected List<Long> keysIf(Predicate<T> filter) {
+        List<Long> keys = new ArrayList<>();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                for (Map.Entry<Long, T> e : seg.cache.entrySet()) {
+                    if(filter.test(e.getValue())) {
+                        keys.add(e.getKey());
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 钉住keys中仍然驻留且满足条件的资源并返回，调用方处理完后需要逐个release。
+     * 这次引用不计为一次访问，不影响置换策略中资源的冷热顺序
+     */
+    protected List<T> pinIf(List<Long> keys, Predicate<T> filter) {
+        List<T> pinned = new ArrayList<>();
+        for (long key : keys) {
+            Segment<T> seg = segmentFor(key);
+            seg.lock.lock();
+            try {
+                T obj = seg.cache.get(key);
+                if(obj == null || !filter.test(obj)) {
+                    continue;
+                }
+                int ref = seg.references.get(key);
+                if(ref == 0 && maxResource > 0) {
+                    seg.policy.pin(key);
+                }
+                seg.references.put(key, ref + 1);
+                pinned.add(obj);
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return pinned;
     }
 
     /**
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                for (long key : new ArrayList<>(seg.cache.keySet())) {
+                    T obj = seg.cache.get(key);
+                    releaseForCache(obj);
+                    seg.references.remove(key);
+                    seg.cache.remove(key);
+                    count.decrementAndGet();
+                }
+                seg.policy.clear();
+            } finally {
+                seg.lock.unlock();
             }
+        }
+    }
+
+
+    /** 缓存命中次数 */
+    protected long hitCount() {
+        long sum = 0;
+        for (CacheStats stats : segmentStats()) {
+            sum += stats.hits;
+        }
+        return sum;
+    }
+
+    /** 缓存未命中次数 */
+    protected long missCount() {
+        long sum = 0;
+        for (CacheStats stats : segmentStats()) {
+            sum += stats.misses;
+        }
+        return sum;
+    }
+
+    /** 因所有资源都被引用而等待的次数 */
+    protected long pinWaitCount() {
+        return pinWaits.sum();
+    }
+
+    /** 获取资源超时失败的次数 */
+    protected long cacheFullCount() {
+        return cacheFulls.sum();
+    }
+
+    /** 资源当前的引用数，不在缓存中时为0 */
+    protected int referenceCount(long key) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            return seg.references.getOrDefault(key, 0);
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
         }
     }
 
+    /** 缓存的最大缓存资源数 */
+    protected int capacity() {
+        return maxResource;
+    }
+
+    /** 当前驻留且满足条件的资源数 */
+    protected int countIf(Predicate<T> filter) {
+        int n = 0;
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                for (T obj : seg.cache.values()) {
+                    if(filter.test(obj)) {
+                        n ++;
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * 驻留的资源按冷热排序，越热越靠前。各段内按置换策略排序，再轮流从各段取出合并，
+     * key在各段间分布均匀，合并结果近似于全局的顺序
+     */
+    protected List<Long> hottestKeys() {
+        List<List<Long>> lists = new ArrayList<>(segments.length);
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                lists.add(seg.policy.hottest());
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        List<Long> keys = new ArrayList<>();
+        for (int i = 0; ; i ++) {
+            boolean more = false;
+            for (List<Long> list : lists) {
+                if(i < list.size()) {
+                    keys.add(list.get(i));
+                    more = true;
+                }
+            }
+            if(!more) {
+                return keys;
+            }
+        }
+    }
+
+    /** 每一段的统计信息 */
+    protected List<CacheStats> segmentStats() {
+        List<CacheStats> list = new ArrayList<>(segments.length);
+        for (int i = 0; i < segments.length; i ++) {
+            Segment<T> seg = segments[i];
+            CacheStats stats = new CacheStats();
+            stats.segment = i;
+            seg.lock.lock();
+            try {
+                stats.resident = seg.cache.size();
+                stats.hits = seg.hits;
+                stats.misses = seg.misses;
+                stats.evictions = seg.evictions;
+            } finally {
+                seg.lock.unlock();
+            }
+            list.add(stats);
+        }
+        return list;
+    }
 
     /**
      * 当资源不在缓存时的获取行为
      */
     protected abstract T getForCache(long key) throws Exception;
     /**
-     * 当资源被驱逐时的写回行为
+     * 当资源被驱逐时的写回行为。驱逐时在段锁外调用，资源已经从缓存中移除
      */
     protected abstract void releaseForCache(T obj);
 
@@ -0,0 +1,12 @@
+package top.wangbd.mydb.server.common;
+
+/**
+ * 缓存中一段的统计信息
+ */
+public class CacheStats {
+    public int segment;      // 段的下标
+    public int resident;     // 段内驻留的资源数
+    public long hits;        // 命中次数
+    public long misses;      // 未命中次数
+    public long evictions;   // 驱逐次数
+}
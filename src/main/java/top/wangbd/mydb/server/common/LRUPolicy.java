@@ -0,0 +1,78 @@
+package top.wangbd.mydb.server.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * LRU 置换策略，驱逐最近最少访问的未被引用资源
+ * <p>
+ * 顺序只由访问（admit/access）决定，pin/unpin 不改变顺序，
+ * 因此后台线程为写回而短暂钉住页面不会影响页面的冷热。
+ * </p>
+ */
+public class LRUPolicy implements ReplacementPolicy {
+    // 所有驻留的资源，队首为最近最少访问的资源
+    private LinkedHashSet<Long> order = new LinkedHashSet<>();
+    // 未被引用的资源
+    private HashSet<Long> unpinned = new HashSet<>();
+
+    @Override
+    public void admit(long key) {
+        order.add(key);
+    }
+
+    @Override
+    public void access(long key) {
+        if(order.remove(key)) {
+            order.add(key);
+        }
+    }
+
+    @Override
+    public void unpin(long key) {
+        unpinned.add(key);
+    }
+
+    @Override
+    public void pin(long key) {
+        unpinned.remove(key);
+    }
+
+    @Override
+    public Long evict() {
+        if(unpinned.isEmpty()) {
+            return null;
+        }
+        Iterator<Long> it = order.iterator();
+        while(it.hasNext()) {
+            long key = it.next();
+            if(unpinned.remove(key)) {
+                it.remove();
+                return key;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean hasEvictable() {
+        return !unpinned.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        order.clear();
+        unpinned.clear();
+    }
+
+    @Override
+    public List<Long> hottest() {
+        List<Long> list = new ArrayList<>(order);
+        Collections.reverse(list);
+        return list;
+    }
+}
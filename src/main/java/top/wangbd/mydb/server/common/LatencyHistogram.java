@@ -0,0 +1,58 @@
+package top.wangbd.mydb.server.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 耗时直方图，按微秒数的2的幂分桶：第i个桶记录耗时在 [2^(i-1), 2^i) 微秒内的次数，第0个桶记录不足1微秒的次数。
+ * 分位数返回所在桶的上界，精度为2倍，足以判断操作是否受I/O限制。多线程并发记录无需加锁
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 40;
+
+    private AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private LongAdder count = new LongAdder();
+    private LongAdder totalNanos = new LongAdder();
+
+    /** 记录一次耗时，单位为纳秒 */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.increment();
+        totalNanos.add(nanos);
+    }
+
+    /** 记录的次数 */
+    public long count() {
+        return count.sum();
+    }
+
+    /** 累计耗时，单位为纳秒 */
+    public long totalNanos() {
+        return totalNanos.sum();
+    }
+
+    /** 平均耗时，单位为微秒 */
+    public double meanMicros() {
+        long c = count();
+        return c == 0 ? 0 : totalNanos() / 1000.0 / c;
+    }
+
+    /** 分位数耗时的上界，单位为微秒，p取值在 (0, 1] */
+    public long percentileMicros(double p) {
+        long c = count();
+        if(c == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(c * p);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i ++) {
+            seen += buckets.get(i);
+            if(seen >= target) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKETS - 1);
+    }
+}
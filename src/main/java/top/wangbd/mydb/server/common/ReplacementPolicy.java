@@ -0,0 +1,50 @@
+package top.wangbd.mydb.server.common;
+
+import top.wangbd.mydb.common.Error;
+import top.wangbd.mydb.server.utils.Panic;
+
+import java.util.List;
+
+/**
+ * 缓存的置换策略，决定缓存满时驱逐哪一个未被引用的资源
+ * <p>
+ * 策略实例不是线程安全的，由 AbstractCache 的段锁保护，每一段持有一个独立的实例。
+ * </p>
+ */
+public interface ReplacementPolicy {
+    String LRU = "lru";
+    String TWO_QUEUE = "2q";
+
+    /*** 资源被加载进缓存，此时资源已被引用*/
+    void admit(long key);
+    /*** 资源在缓存中被命中*/
+    void access(long key);
+    /*** 资源的引用计数归零，可以被驱逐*/
+    void unpin(long key);
+    /*** 未被引用的资源重新被引用，不能再被驱逐*/
+    void pin(long key);
+    /*** 选择一个可驱逐的资源并将其移出策略，没有可驱逐的资源时返回null*/
+    Long evict();
+    /*** 是否存在可驱逐的资源*/
+    boolean hasEvictable();
+    /*** 清空策略记录的所有资源*/
+    void clear();
+    /*** 策略记录的所有驻留资源，越热的资源越靠前*/
+    List<Long> hottest();
+
+    /**
+     * 根据名称创建置换策略
+     * @param name 策略名称，lru 或 2q
+     * @param capacity 该策略管理的缓存容量，用于确定 2Q 各队列的长度
+     */
+    public static ReplacementPolicy create(String name, int capacity) {
+        if(name == null || LRU.equals(name)) {
+            return new LRUPolicy();
+        }
+        if(TWO_QUEUE.equals(name)) {
+            return new TwoQueuePolicy(capacity);
+        }
+        Panic.panic(Error.InvalidPolicyException);
+        return null;
+    }
+}
@@ -0,0 +1,127 @@
+package top.wangbd.mydb.server.common;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * 2Q 置换策略（Johnson & Shasha, 1994），用于抵抗全表扫描对热点数据的冲刷
+ * <p>
+ * A1in：第一次被加载的资源，按 FIFO 顺序驱逐，其间的重复访问视为相关访问，不提升优先级。
+ * A1out：从 A1in 驱逐的资源的 key（不保存数据），若在此期间再次被加载，说明是热点资源。
+ * Am：热点资源，按 LRU 顺序驱逐。
+ * 扫描只访问一次的页面停留在 A1in 中并很快被驱逐，不会挤占 Am 中的 B+树内部节点等热点页面。
+ * </p>
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private int kin;   // A1in 的目标长度
+    private int kout;  // A1out 的最大长度
+
+    private LinkedHashSet<Long> a1in = new LinkedHashSet<>();
+    private LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+    private LinkedHashSet<Long> am = new LinkedHashSet<>();
+    // 未被引用、可以被驱逐的资源
+    private HashSet<Long> unpinned = new HashSet<>();
+
+    public TwoQueuePolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public void admit(long key) {
+        if(a1out.remove(key)) {
+            am.add(key);
+        } else {
+            a1in.add(key);
+        }
+    }
+
+    @Override
+    public void access(long key) {
+        if(am.remove(key)) {
+            am.add(key);
+        }
+    }
+
+    @Override
+    public void unpin(long key) {
+        unpinned.add(key);
+    }
+
+    @Override
+    public void pin(long key) {
+        unpinned.remove(key);
+    }
+
+    @Override
+    public Long evict() {
+        Long victim = null;
+        if(a1in.size() > kin) {
+            victim = evictFrom(a1in);
+        }
+        if(victim == null) {
+            victim = evictFrom(am);
+        }
+        if(victim == null) {
+            victim = evictFrom(a1in);
+        }
+        if(victim == null) {
+            return null;
+        }
+        unpinned.remove(victim);
+        return victim;
+    }
+
+    /** 从队列中按顺序驱逐第一个未被引用的资源，被驱逐的A1in资源记入A1out */
+    private Long evictFrom(LinkedHashSet<Long> queue) {
+        Iterator<Long> it = queue.iterator();
+        while(it.hasNext()) {
+            long key = it.next();
+            if(unpinned.contains(key)) {
+                it.remove();
+                if(queue == a1in) {
+                    rememberOut(key);
+                }
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private void rememberOut(long key) {
+        a1out.add(key);
+        if(a1out.size() > kout) {
+            Iterator<Long> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    @Override
+    public boolean hasEvictable() {
+        return !unpinned.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        a1in.clear();
+        a1out.clear();
+        am.clear();
+        unpinned.clear();
+    }
+
+    /** Am 中的热点资源在前（最近访问的在前），之后是 A1in 中的资源（最近加载的在前） */
+    @Override
+    public List<Long> hottest() {
+        List<Long> hot = new ArrayList<>(am);
+        Collections.reverse(hot);
+        List<Long> in = new ArrayList<>(a1in);
+        Collections.reverse(in);
+        hot.addAll(in);
+        return hot;
+    }
+}
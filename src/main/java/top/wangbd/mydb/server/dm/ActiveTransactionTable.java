@@ -0,0 +1,58 @@
+package top.wangbd.mydb.server.dm;
+
+import top.wangbd.mydb.server.dm.Logger.Logger;
+import top.wangbd.mydb.server.tm.TransactionManager;
+import top.wangbd.mydb.server.tm.TransactionManagerImpl;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 活跃事务表，记录每个事务第一条日志开头的LSN
+ * <p>
+ * 数据管理器的日志都经过这里写入。检查点记下活跃事务表，恢复时从检查点和活跃事务的第一条日志中较早的位置开始读日志，
+ * 检查点时仍未结束的事务在检查点之前的修改也能被撤销。事务结束时不通知数据管理器，由检查点按事务状态移除已结束的事务。
+ * </p>
+ * <p>
+ * 登记和写日志在读锁内完成，检查点在写锁内读取日志末尾和活跃事务表，
+ * 检查点之前写入的日志所属的事务一定已经登记。
+ * </p>
+ */
+class ActiveTransactionTable {
+    private Logger logger;
+    private TransactionManager tm;
+    private Map<Long, Long> firstLsn = new ConcurrentHashMap<>();
+    private ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    ActiveTransactionTable(Logger logger, TransactionManager tm) {
+        this.logger = logger;
+        this.tm = tm;
+    }
+
+    /** 以事务xid的名义写入一条日志，返回LSN。事务的第一条日志之前的日志末尾就是它的开头 */
+    long log(long xid, byte[] log) {
+        lock.readLock().lock();
+        try {
+            if(xid != TransactionManagerImpl.SUPER_XID && !firstLsn.containsKey(xid)) {
+                firstLsn.putIfAbsent(xid, logger.end());
+            }
+            return logger.log(log);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** 移除已经结束的事务，把仍然活跃的事务复制到active中，返回此时的日志末尾作为检查点位置 */
+    long mark(Map<Long, Long> active) {
+        lock.writeLock().lock();
+        try {
+            firstLsn.keySet().removeIf(xid -> !tm.isActive(xid));
+            active.putAll(firstLsn);
+            return logger.end();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package top.wangbd.mydb.server.dm;
+
+import top.wangbd.mydb.server.dm.pageCache.PageCache;
+import top.wangbd.mydb.server.utils.Panic;
+import top.wangbd.mydb.server.utils.Parser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 页面缓存预热
+ * <p>
+ * 关闭时把驻留在缓存中的页号按冷热顺序（越热越靠前）写入 xxx.warm 文件，
+ * 格式：[Count]4 [Pgno]4 [Pgno]4 ...，与 Booter 相同先写临时文件再重命名。
+ * 打开时取最热的、不超过缓存容量的那些页面，按页号顺序在后台线程中读入缓存，
+ * 读入的页面不被引用但留在缓存中，服务在预热期间照常接受请求。
+ * </p>
+ */
+public class CacheWarmer implements Runnable {
+    public static final String WARM_SUFFIX = ".warm";
+    public static final String WARM_TMP_SUFFIX = ".warm_tmp";
+
+    private String path;
+    private PageCache pc;
+    private Thread thread;
+    private volatile boolean stopped;
+
+    CacheWarmer(String path, PageCache pc) {
+        this.path = path;
+        this.pc = pc;
+    }
+
+    /** 读取上次关闭时保存的页号，启动后台预热线程，没有保存的页号时直接返回 */
+    void start() {
+        new File(path+WARM_TMP_SUFFIX).delete();
+        if(!new File(path+WARM_SUFFIX).exists()) {
+            return;
+        }
+        thread = new Thread(this, "cache-warmer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** 停止预热并等待后台线程结束 */
+    void shutdown() {
+        stopped = true;
+        if(thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Integer> pages = load();
+        int capacity = pc.metrics().getCapacityPages();
+        if(pages.size() > capacity) {
+            pages = new ArrayList<>(pages.subList(0, capacity));
+        }
+        // 按页号顺序读取，尽量顺序访问文件
+        Collections.sort(pages);
+        int maxPgno = pc.getPageNumber();
+        for (int pgno : pages) {
+            if(stopped) {
+                break;
+            }
+            if(pgno > maxPgno) {
+                continue;
+            }
+            pc.prefetchPage(pgno);
+        }
+    }
+
+    /** 读取保存的页号 */
+    List<Integer> load() {
+        byte[] buf = null;
+        try {
+            buf = Files.readAllBytes(new File(path+WARM_SUFFIX).toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        List<Integer> pages = new ArrayList<>();
+        if(buf.length < 4) {
+            return pages;
+        }
+        int count = Parser.parseInt(Arrays.copyOfRange(buf, 0, 4));
+        for (int i = 0; i < count && 4 + i*4 + 4 <= buf.length; i ++) {
+            pages.add(Parser.parseInt(Arrays.copyOfRange(buf, 4 + i*4, 8 + i*4)));
+        }
+        return pages;
+    }
+
+    /** 保存当前驻留在缓存中的页号，需要在页面缓存关闭之前调用 */
+    void save() {
+        List<Integer> pages = pc.hottestPages();
+        byte[] buf = new byte[4 + pages.size() * 4];
+        System.arraycopy(Parser.int2Byte(pages.size()), 0, buf, 0, 4);
+        for (int i = 0; i < pages.size(); i ++) {
+            System.arraycopy(Parser.int2Byte(pages.get(i)), 0, buf, 4 + i*4, 4);
+        }
+        File tmp = new File(path+WARM_TMP_SUFFIX);
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buf);
+            out.flush();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path+WARM_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package top.wangbd.mydb.server.dm;
+
+import top.wangbd.mydb.server.utils.Panic;
+import top.wangbd.mydb.server.utils.Parser;
+
+import com.google.common.primitives.Bytes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 检查点文件，记录最近一次检查点对应的日志位置：该位置之前的日志所做的修改都已写入并刷到数据库文件
+ * 格式：[LogPosition 8] [PageNumber 4] [Count 4] {[XID 8] [FirstLsn 8]} * Count
+ * PageNumber是检查点开始时数据库文件的页数，之后是检查点开始时的活跃事务表，记录每个活跃事务第一条日志开头的LSN。
+ * 与 Booter 相同，先写临时文件再重命名替换，保证文件内容总是完整的。还没有做过检查点时文件不存在
+ */
+public class Checkpoint {
+    public static final String CHECKPOINT_SUFFIX = ".cp";
+    public static final String CHECKPOINT_TMP_SUFFIX = ".cp_tmp";
+
+    private String path;
+
+    // 检查点文件的内容
+    public static class State {
+        public long position;
+        public int pageNumber;
+        public Map<Long, Long> active;
+
+        /** 恢复需要读取的第一条日志：检查点位置，或者更早开始的活跃事务的第一条日志 */
+        public long recoverFrom() {
+            long from = position;
+            for (long lsn : active.values()) {
+                from = Math.min(from, lsn);
+            }
+            return from;
+        }
+    }
+
+    /** 打开检查点文件，并清除上次写了一半的临时文件 */
+    public static Checkpoint open(String path) {
+        new File(path+CHECKPOINT_TMP_SUFFIX).delete();
+        return new Checkpoint(path);
+    }
+
+    private Checkpoint(String path) {
+        this.path = path;
+    }
+
+    /** 读取最近一次检查点，还没有做过检查点时返回null */
+    public State load() {
+        File f = new File(path+CHECKPOINT_SUFFIX);
+        if(!f.exists()) {
+            return null;
+        }
+        byte[] buf = null;
+        try {
+            buf = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        State st = new State();
+        st.position = Parser.parseLong(Arrays.copyOfRange(buf, 0, 8));
+        st.pageNumber = Parser.parseInt(Arrays.copyOfRange(buf, 8, 12));
+        int count = Parser.parseInt(Arrays.copyOfRange(buf, 12, 16));
+        st.active = new HashMap<>();
+        for (int i = 0, pos = 16; i < count; i ++, pos += 16) {
+            st.active.put(Parser.parseLong(Arrays.copyOfRange(buf, pos, pos+8)),
+                    Parser.parseLong(Arrays.copyOfRange(buf, pos+8, pos+16)));
+        }
+        return st;
+    }
+
+    /** 记录新的检查点位置、检查点开始时的页数和活跃事务表 */
+    public void update(long logPosition, int pageNumber, Map<Long, Long> active) {
+        byte[] raw = Bytes.concat(Parser.long2Byte(logPosition), Parser.int2Byte(pageNumber), Parser.int2Byte(active.size()));
+        for (Map.Entry<Long, Long> e : active.entrySet()) {
+            raw = Bytes.concat(raw, Parser.long2Byte(e.getKey()), Parser.long2Byte(e.getValue()));
+        }
+        File tmp = new File(path+CHECKPOINT_TMP_SUFFIX);
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(raw);
+            out.flush();
+            out.getFD().sync();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path+CHECKPOINT_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -4,48 +4,90 @@ import top.wangbd.mydb.server.dm.Logger.Logger;
 import top.wangbd.mydb.server.dm.dataItem.DataItem;
 import top.wangbd.mydb.server.dm.page.PageOne;
 import top.wangbd.mydb.server.dm.pageCache.PageCache;
+import top.wangbd.mydb.server.dm.pageCache.PageCacheConfig;
+import top.wangbd.mydb.server.dm.pageIndex.FreeSpaceMap;
 import top.wangbd.mydb.server.tm.TransactionManager;
 
+import java.io.InputStream;
+import java.util.List;
+
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    /** 顺序读取DataItem的完整数据，超过一页的数据存放在溢出页中，不需要一次全部读入内存 */
+    InputStream openData(DataItem di);
+    /** 批量插入，返回的uid与data一一对应，每个页面只引用一次、只记录一条日志 */
+    List<Long> insertBatch(long xid, List<byte[]> data) throws Exception;
+    /** 释放uid对应的DataItem占用的空间，释放后uid不再可读，调用方保证没有事务还需要读取它 */
+    void free(long uid) throws Exception;
+    /** 等待已经记录的日志全部落盘，事务提交前调用 */
+    void flushLog();
+    /** 提示即将顺序读取uid所在页面及其之后的页面，页面缓存会异步预读 */
+    void readAhead(long uid);
+    /** 存储层的监控指标，文本形式 */
+    String stats();
     void close();
 
     /** 创建DataManager实例, 并构建.db和.log文件，初始化db文件的第一页数据 */
     public static DataManager create(String path, long mem, TransactionManager tm) {
+        return create(path, new PageCacheConfig(mem), tm);
+    }
+
+    /** 按指定的页面缓存配置创建DataManager实例 */
+    public static DataManager create(String path, PageCacheConfig config, TransactionManager tm) {
         // 创建页面缓存和日志管理器
-        PageCache pc = PageCache.create(path, mem);
+        PageCache pc = PageCache.create(path, config);
         Logger lg = Logger.create(path);
 
         // 创建DataManagerImpl实例
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, FreeSpaceMap.open(path));
 
         // 初始化第一页
         dm.initPageOne();
+
+        // 启动后台刷脏线程
+        dm.startCleaner(Checkpoint.open(path));
+        if(config.warmUp) {
+            dm.warmer = new CacheWarmer(path, pc);
+        }
         return dm;
     }
 
     /** 创建DataManager实例，加载.db和.log文件，校验第一页数据完整性 */
     public static DataManager open(String path, long mem, TransactionManager tm) {
+        return open(path, new PageCacheConfig(mem), tm);
+    }
+
+    /** 按指定的页面缓存配置打开DataManager实例 */
+    public static DataManager open(String path, PageCacheConfig config, TransactionManager tm) {
         // 打开页面缓存和日志管理器
-        PageCache pc = PageCache.open(path, mem);
+        PageCache pc = PageCache.open(path, config);
         Logger lg = Logger.open(path);
 
         // 创建DataManagerImpl实例
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, FreeSpaceMap.open(path));
 
-        // 加载并校验第一页数据完整性，如校验失败则进行恢复
+        // 加载并校验第一页数据完整性，如校验失败则从最近一次检查点开始恢复
+        Checkpoint checkpoint = Checkpoint.open(path);
         if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            Recover.recover(tm, lg, pc, checkpoint.load());
         }
 
-        // 填充页面索引
+        // 按空闲空间表填充页面索引，只读取表中没有记录的页面
         dm.fillPageIndex();
 
         // 刷新第一页的校验码
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
 
+        // 启动后台刷脏线程
+        dm.startCleaner(checkpoint);
+
+        // 在后台按上次关闭时缓存中的页面预热
+        if(config.warmUp) {
+            dm.warmer = new CacheWarmer(path, pc);
+            dm.warmer.start();
+        }
         return dm;
     }
 }
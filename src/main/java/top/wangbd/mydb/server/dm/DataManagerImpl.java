@@ -1,6 +1,7 @@
 package top.wangbd.mydb.server.dm;
 
-import top.wangbd.mydb.common.Error;
+import com.google.common.primitives.Bytes;
+import top.wangbd.mydb.server.common.SubArray;
 import top.wangbd.mydb.server.common.AbstractCache;
 import top.wangbd.mydb.server.dm.Logger.Logger;
 import top.wangbd.mydb.server.dm.dataItem.DataItem;
@@ -9,26 +10,45 @@ import top.wangbd.mydb.server.dm.page.Page;
 import top.wangbd.mydb.server.dm.page.PageOne;
 import top.wangbd.mydb.server.dm.page.PageX;
 import top.wangbd.mydb.server.dm.pageCache.PageCache;
+import top.wangbd.mydb.server.dm.pageIndex.FreeSpaceMap;
 import top.wangbd.mydb.server.dm.pageIndex.PageIndex;
 import top.wangbd.mydb.server.dm.pageIndex.PageInfo;
 import top.wangbd.mydb.server.tm.TransactionManager;
+import top.wangbd.mydb.server.tm.TransactionManagerImpl;
 import top.wangbd.mydb.server.utils.Panic;
+import top.wangbd.mydb.server.utils.Parser;
 import top.wangbd.mydb.server.utils.Types;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager{
+    // 溢出块的数据长度，加上DataItem的头部3字节和NextUid 8字节正好占满一页
+    static final int OVERFLOW_CHUNK_SIZE = PageX.MAX_FREE_SPACE - 3 - 8;
 
     TransactionManager tm;
     PageCache pc;
     Logger logger;
+    ActiveTransactionTable att;
     PageIndex pIndex;
+    FreeSpaceMap fsm;
     Page pageOne;
+    PageCleaner cleaner;
+    CacheWarmer warmer;  // 未开启预热时为null
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.fsm = fsm;
+        this.att = new ActiveTransactionTable(logger, tm);
+        this.pIndex = new PageIndex(fsm);
+        // 写回页面前先把修改它的日志刷盘
+        pc.setLogFlusher(logger::flush);
     }
 
     /** 在创建文件时初始化PageOne，并赋给pageOne*/
@@ -52,23 +72,44 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return PageOne.checkVc(pageOne);
     }
 
+    /** 启动后台刷脏线程，需要在恢复和初始化完成之后调用 */
+    void startCleaner(Checkpoint checkpoint) {
+        cleaner = new PageCleaner(pc, logger, att, checkpoint, fsm);
+        cleaner.start();
+    }
+
     /** 释放dataitem */
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
 
-    /** 初始化pageIndex */
+    /**
+     * 初始化pageIndex：空闲空间表中记录的页面直接加入，
+     * 只读取表中没有记录的页面（上次保存之后新建的页面，或没有空闲空间表时的所有页面）
+     */
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
+        // 恢复时可能截断了数据库文件，丢弃多余的记录
+        fsm.truncate(pageNumber);
+        int known = fsm.pageCount();
         // 从第2页开始，第1页是pageOne
-        for(int i = 2; i <= pageNumber; i ++) {
+        for(int i = 2; i <= known; i ++) {
+            pIndex.add(i, fsm.get(i));
+        }
+        int from = Math.max(2, known + 1);
+        if(from > pageNumber) {
+            return;
+        }
+        // 顺序扫描剩余页面，先提示预读，之后由页面缓存的顺序访问检测继续向后预读
+        pc.readAhead(from, PageCache.READ_AHEAD_PAGES);
+        for(int i = from; i <= pageNumber; i ++) {
             Page pg = null;
             try {
                 pg = pc.getPage(i);
             } catch (Exception e) {
                 Panic.panic(e);
             }
-            pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
+            pIndex.add(pg.getPageNumber(), PageX.getAvailableSpace(pg));
             pg.release();
         }
     }
@@ -76,15 +117,20 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     /** 缓存中不存在，从数据源中获取DataItem */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        // 解析uid，获取对应的page和offset
-        short offset = (short)(uid & ((1L << 16) - 1));
+        // 解析uid，获取对应的page和slot
+        short slot = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         int pgno = (int)(uid & ((1L << 32) - 1));
 
         // 获得DataItem所在的页面，如果页面不在缓存中则把页面加载到页面缓存中
         Page pg = pc.getPage(pgno);
-        // 从页面和偏移量中解析出DataItem
-        return DataItem.parseDataItem(pg, offset, this);
+        // 从页面和槽号中解析出DataItem，解析期间页面不会被整理
+        pg.startModify();
+        try {
+            return DataItem.parseDataItem(pg, slot, this);
+        } finally {
+            pg.endModify();
+        }
     }
 
     /** 把新的DataItem写入到数据源 */
@@ -93,10 +139,27 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         di.page().release();
     }
 
-    /** 为xid生成update日志*/
+    /** 为xid生成update日志，调用方正在修改DataItem所在的页面*/
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        di.page().setLsn(att.log(xid, log));
+    }
+
+    /** 等待已经记录的日志全部落盘 */
+    @Override
+    public void flushLog() {
+        logger.flush(logger.end());
+    }
+
+    @Override
+    public void readAhead(long uid) {
+        int pgno = (int)(uid >>> 32);
+        pc.readAhead(pgno, PageCache.READ_AHEAD_PAGES);
+    }
+
+    @Override
+    public String stats() {
+        return pc.metrics().report() + logger.stats();
     }
 
     @Override
@@ -112,70 +175,278 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     /** 插入操作：插入新的DataItem，并记录日志 */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        // 把data包装成DataItem的原始格式
-        byte[] raw = DataItem.wrapDataItemRaw(data);
-        // 规定数据不能超过一页的最大可用空间
-        if(raw.length > PageX.MAX_FREE_SPACE) {
-            throw Error.DataTooLargeException;
-        }
-
-        // 从pIndex中选择一个有足够空间的页面
-        PageInfo pi = null;
-        // 尝试5次寻找可用页面
-        for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                // 没有找到合适的页面，创建一个新的页面
-                // 虽然这里创建了一个新页面，但因为可能有并发插入，所以不能保证下次select就能选到这个页面，所以要尝试多次
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+        // 把data包装成DataItem的原始格式，超过一页的数据先写入溢出块
+        byte[] raw = wrapRaw(xid, data);
+
+        // 选择一个有足够空间的页面
+        Page pg = lockPage(raw.length);
+        int pgno = pg.getPageNumber();
+        int freeSpace = PageX.getAvailableSpace(pg);
+        try {
+            // 记录日志和插入期间页面不会被后台写回
+            short slot;
+            pg.startModify();
+            try {
+                // 记录日志前先标记脏页，检查点不会漏掉这一页而丢弃它的日志
+                pg.setDirty(true);
+                // 生成插入日志并记录
+                byte[] log = Recover.insertLog(xid, pg, raw);
+                pg.setLsn(att.log(xid, log));
+
+                // 执行插入操作
+                slot = PageX.insert(pg, raw);
+            } finally {
+                pg.endModify();
             }
+
+            // 页面释放后其页帧可能被其他页面复用，需要在释放前读取剩余空间
+            freeSpace = PageX.getAvailableSpace(pg);
+            pg.unlock();
+            pg.release();
+
+            // 返回新插入数据的uid
+            return Types.addressToUid(pgno, slot);
+
+        } finally {
+            // 将取出的pg重新插入pIndex
+            pIndex.add(pgno, freeSpace);
         }
+    }
 
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
+    /**
+     * 批量插入，返回的uid与data一一对应。
+     * 每个页面只选择和引用一次，尽量多地放入数据，每个页面只记录一条批量插入日志
+     */
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> data) throws Exception {
+        List<byte[]> raws = new ArrayList<>(data.size());
+        for (byte[] d : data) {
+            raws.add(wrapRaw(xid, d));
         }
 
-        Page pg = null;
-        int freeSpace = 0;
+        List<Long> uids = new ArrayList<>(raws.size());
+        int next = 0;
+        while(next < raws.size()) {
+            Page pg = lockPage(raws.get(next).length);
+            int pgno = pg.getPageNumber();
+            int freeSpace = PageX.getAvailableSpace(pg);
+            try {
+                int from = next;
+                List<Short> slots = new ArrayList<>();
+                pg.startModify();
+                try {
+                    // 先放入数据再记录日志，结束修改前页面不会被写回，写回时按页面的LSN先刷日志
+                    while(next < raws.size() && PageX.getFreeSpace(pg) >= raws.get(next).length) {
+                        slots.add(PageX.insert(pg, raws.get(next)));
+                        next ++;
+                    }
+                    pg.setLsn(att.log(xid, Recover.batchInsertLog(xid, pg, slots, raws.subList(from, next))));
+                } finally {
+                    pg.endModify();
+                }
+                for (short slot : slots) {
+                    uids.add(Types.addressToUid(pgno, slot));
+                }
 
-        try {
-            // 获取选中的页面
-            pg = pc.getPage(pi.pgno);
+                freeSpace = PageX.getAvailableSpace(pg);
+                pg.unlock();
+                pg.release();
+            } finally {
+                pIndex.add(pgno, freeSpace);
+            }
+        }
+        return uids;
+    }
 
-            // 生成插入日志并记录
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
+    /**
+     * 把data包装成DataItem的原始格式。超过一页的数据只在行内保留前 INLINE_SIZE 字节，
+     * 其余部分切分为溢出块插入，每块正好占满一页。溢出块与行使用同一个事务记录日志，
+     * 事务回滚后溢出块和行一样成为无效数据，由清理线程释放
+     */
+    private byte[] wrapRaw(long xid, byte[] data) throws Exception {
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        if(raw.length <= PageX.MAX_FREE_SPACE) {
+            return raw;
+        }
+        int length = data.length - DataItem.INLINE_SIZE;
+        int chunks = (length + OVERFLOW_CHUNK_SIZE - 1) / OVERFLOW_CHUNK_SIZE;
+        // 从最后一块开始插入，每块记录下一块的uid
+        long next = 0;
+        for (int i = chunks - 1; i >= 0; i --) {
+            int from = DataItem.INLINE_SIZE + i * OVERFLOW_CHUNK_SIZE;
+            int to = Math.min(from + OVERFLOW_CHUNK_SIZE, data.length);
+            next = insert(xid, Bytes.concat(Parser.long2Byte(next), Arrays.copyOfRange(data, from, to)));
+        }
+        return DataItem.wrapOverflowRaw(Arrays.copyOfRange(data, 0, DataItem.INLINE_SIZE), length, next);
+    }
 
-            // 执行插入操作
-            short offset = PageX.insert(pg, raw);
+    /**
+     * 顺序读取DataItem的完整数据，溢出的数据每次只读入一个溢出块。
+     * 调用方在读取行内部分期间持有DataItem的读锁
+     */
+    @Override
+    public InputStream openData(DataItem di) {
+        SubArray sa = di.data();
+        byte[] head = Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+        if(!di.isOverflow()) {
+            return new ByteArrayInputStream(head);
+        }
+        DataItemImpl item = (DataItemImpl)di;
+        return new OverflowInputStream(this, head, item.overflowUid(), item.overflowLength());
+    }
 
-            pg.release();
+    /** 读取一个溢出块，不检查有效位：崩溃恢复撤销的事务的溢出块是无效的，清理时仍需读取 */
+    DataItem readChunk(long uid) throws Exception {
+        return super.get(uid);
+    }
 
-            // 返回新插入数据的uid
-            return Types.addressToUid(pi.pgno, offset);
+    /**
+     * 选择一个至少有size连续空闲空间的页面，返回时页面已被引用并加锁，
+     * 调用方使用完后解锁、释放，并把页面放回pIndex
+     */
+    private Page lockPage(int size) throws Exception {
+        while(true) {
+            // 从pIndex中选择一个有足够空间的页面
+            PageInfo pi = selectPage(size);
+            Page pg;
+            try {
+                pg = pc.getPage(pi.pgno);
+            } catch(Exception e) {
+                // 页面获取失败，将原先的freeSpace值重新加入pIndex
+                pIndex.add(pi.pgno, pi.freeSpace);
+                throw e;
+            }
+            int freeSpace;
+            pg.lock();
+            try {
+                freeSpace = PageX.getAvailableSpace(pg);
+                if(freeSpace >= size) {
+                    // 连续的空闲空间不够时整理页面，有其他人在使用页面而不能整理时按连续的空闲空间放回索引
+                    if(PageX.getFreeSpace(pg) >= size || compact(pg)) {
+                        return pg;
+                    }
+                    freeSpace = PageX.getFreeSpace(pg);
+                }
+            } catch(Exception e) {
+                pg.unlock();
+                pg.release();
+                pIndex.add(pi.pgno, pi.freeSpace);
+                throw e;
+            }
+            // 崩溃前没有保存的空闲空间表中的值可能偏大，按页面实际的空闲空间放回索引，重新选择
+            pg.unlock();
+            pg.release();
+            pIndex.add(pi.pgno, freeSpace);
+        }
+    }
 
+    /**
+     * 整理页面，把可回收空间合并为连续的空闲空间，调用方持有页面锁。
+     * 整理会移动页内数据，页面上有DataItem或者正在被后台写回时不能整理，返回false
+     */
+    private boolean compact(Page pg) {
+        if(!pg.tryLockSnapshot()) {
+            return false;
+        }
+        try {
+            // 持有快照锁之后不会再解析出新的DataItem，除调用方外没有引用说明页面上没有DataItem
+            if(pc.getReferenceCount(pg) > 1) {
+                return false;
+            }
+            byte[] image = PageX.compacted(pg);
+            pg.setDirty(true);
+            pg.setLsn(att.log(TransactionManagerImpl.SUPER_XID, Recover.compactLog(pg, image)));
+            PageX.applyCompacted(pg, image);
+            return true;
         } finally {
-            // 将取出的pg重新插入pIndex
-            if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            } else {
-                // 在插入过程中如果pg获取失败，则将原先的freeSpace值重新加入pIndex(其实没有太弄清楚这个条件什么时候触发)
-                pIndex.add(pi.pgno, freeSpace);
+            pg.unlockSnapshot();
+        }
+    }
+
+    /**
+     * 释放uid对应的DataItem占用的槽，释放后uid不再可读，之后的插入可以复用该槽和空间。
+     * 调用方保证没有事务还需要读取它
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        // 先释放行，再沿着链表释放溢出块
+        long next = freeSlot(uid, false);
+        while(next != 0) {
+            next = freeSlot(next, true);
+        }
+    }
+
+    /**
+     * 释放一个槽，返回下一个需要释放的溢出块的uid，没有时返回0。
+     * chunk为true表示释放的是溢出块，下一块的uid在它的数据开头；否则是行，溢出时返回第一块的uid
+     */
+    private long freeSlot(long uid, boolean chunk) throws Exception {
+        short slot = (short)(uid & ((1L << 16) - 1));
+        int pgno = (int)(uid >>> 32);
+        Page pg = pc.getPage(pgno);
+        try {
+            int freeSpace;
+            long next = 0;
+            pg.lock();
+            pg.startModify();
+            try {
+                if(PageX.getSlotOffset(pg, slot) == 0) {
+                    return 0;
+                }
+                DataItemImpl di = (DataItemImpl)DataItem.parseDataItem(pg, slot, this);
+                if(chunk) {
+                    SubArray sa = di.data();
+                    next = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+                } else if(di.isOverflow()) {
+                    next = di.overflowUid();
+                }
+                pg.setDirty(true);
+                pg.setLsn(att.log(TransactionManagerImpl.SUPER_XID, Recover.freeLog(pg, slot)));
+                PageX.free(pg, slot);
+                freeSpace = PageX.getAvailableSpace(pg);
+            } finally {
+                pg.endModify();
+                pg.unlock();
             }
+            // 回收的空间登记到页面索引，整理页面后可以使用
+            pIndex.update(pgno, freeSpace);
+            return next;
+        } finally {
+            pg.release();
         }
     }
 
+    /**
+     * 从pIndex中选择一个至少有size空闲空间的页面，没有时创建新页面。
+     * 新页面直接交给当前插入者使用，插入完成后才加入pIndex，不会被其他线程抢走
+     */
+    private PageInfo selectPage(int size) {
+        PageInfo pi = pIndex.select(size);
+        if(pi != null) {
+            return pi;
+        }
+        int newPgno = pc.newPage(PageX.initRaw());
+        return new PageInfo(newPgno, PageX.MAX_FREE_SPACE);
+    }
+
     /** 关闭DataManager，释放资源 */
     @Override
     public void close() {
+        if(warmer != null) {
+            warmer.shutdown();
+        }
+        if(cleaner != null) {
+            cleaner.shutdown();
+        }
         super.close();
         logger.close();
 
         PageOne.setVcClose(pageOne);
         pageOne.release();
+        if(warmer != null) {
+            warmer.save();
+        }
+        fsm.save();
         pc.close();
     }
 }
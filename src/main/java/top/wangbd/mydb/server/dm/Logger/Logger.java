@@ -1,91 +1,34 @@
 package top.wangbd.mydb.server.dm.Logger;
 
-import top.wangbd.mydb.common.Error;
-import top.wangbd.mydb.server.utils.Panic;
-import top.wangbd.mydb.server.utils.Parser;
-
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-
 public interface Logger {
-    /*** 写入日志数据*/
-    void log(byte[] data);
-    /*** 截断日志文件到指定位置*/
-    void truncate(long x) throws Exception;
+    /*** 写入日志数据，返回日志的LSN（日志末尾在整个日志历史中的位置，单调递增），不等待落盘*/
+    long log(byte[] data);
+    /*** 等待LSN不超过lsn的日志都落盘*/
+    void flush(long lsn);
     /*** 获取下一条日志数据*/
     byte[] next();
-    /*** 将日志读取指针重置到文件开头
+    /*** 将日志读取指针重置到最早的日志
      * 用于重新遍历所有日志记录*/
     void rewind();
+    /*** 将日志读取指针移动到LSN为lsn的位置，lsn需要是某条日志的开头
+     * 用于从检查点开始恢复*/
+    void rewind(long lsn);
+    /*** 丢弃LSN在lsn之前的日志，已经分配的LSN不变。按段丢弃，lsn所在的段保留*/
+    void truncateBefore(long lsn);
     /*** 关闭日志文件，释放相关资源*/
     void close();
+    /*** 当前日志的末尾位置，即最新一条日志的LSN，包括尚未落盘的日志*/
+    long end();
+    /*** 日志条数、落盘次数等统计信息，文本形式*/
+    String stats();
 
-    /*** 创建日志文件*/
+    /*** 创建日志，日志按 LoggerImpl.SEGMENT_SIZE 分段*/
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        try {
-            // 尝试在指定路径创建日志文件，如果文件已存在 createNewFile() 返回 false
-            if(!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        // 初始化 [XChecksum] 的字节大小（写入4个字节的0）
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-
-        return new LoggerImpl(raf, fc, 0);
+        return LoggerImpl.create(path, LoggerImpl.SEGMENT_SIZE);
     }
 
-    /*** 打开已有的日志文件*/
+    /*** 打开已有的日志*/
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
-
-        return lg;
+        return LoggerImpl.open(path, LoggerImpl.SEGMENT_SIZE);
     }
-
-
 }
@@ -2,247 +2,625 @@ package top.wangbd.mydb.server.dm.Logger;
 
 import com.google.common.primitives.Bytes;
 import top.wangbd.mydb.common.Error;
+import top.wangbd.mydb.server.utils.Crc32c;
 import top.wangbd.mydb.server.utils.Panic;
 import top.wangbd.mydb.server.utils.Parser;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Checksum;
 
-public class LoggerImpl implements Logger{
-    private static final int SEED = 13331;
-
+/**
+ * 日志由多个段文件组成，文件名是 path.log.[FirstLsn]，FirstLsn是段中第一条日志开头的LSN，16位十六进制
+ * 段文件：[FirstLsn 8] [Version 4] [Length 4] [SegChecksum 4] [Log1] [Log2] ... [LogN] [BadTail]
+ * 每条日志：[Size] [Checksum] [Data]
+ * <p>
+ * Version是日志格式的版本，打开时与LOG_VERSION不同则报错，修改日志格式时增加版本号。
+ * 版本1：Checksum是Data的CRC32C，SegChecksum是段中所有日志的 [Size] [Checksum] 依次拼接后的CRC32C，
+ * 每条日志的数据只计算一次校验和。
+ * 版本2：更新日志中记录数据的页内偏移。
+ * </p>
+ * <p>
+ * 每条日志的LSN是它的末尾在整个日志历史中的位置，单调递增，不计段头。一条日志不会跨段，
+ * 当前段放不下时封存当前段，从新的段开始写。封存的段写完后在段头记录日志的总长度Length和所有日志的校验和SegChecksum，
+ * 此后不再修改；Length为0的段还没有封存，只有最后一个段可能没有封存。
+ * 打开时只需扫描没有封存的段，按每条日志的校验和移除Bad Tail；封存的段在从头顺序读取时按段校验和验证。
+ * 检查点之前的段整个删除。
+ * </p>
+ * <p>
+ * log把日志复制到环形缓冲区后立即返回LSN，需要持久化时调用flush(lsn)等待。
+ * 后台刷日志线程在有人等待或缓冲区写满时把缓冲区中积累的日志一起写入段文件，每个写到的段只调用一次force，
+ * 然后唤醒所有已经落盘的等待者（组提交）。
+ * </p>
+ */
+public class LoggerImpl implements Logger, Runnable {
     private static final int OF_SIZE = 0; // 尺寸 4字节
     private static final int OF_CHECKSUM = OF_SIZE + 4; // 校验和 4字节
     private static final int OF_DATA = OF_CHECKSUM + 4;
 
+    // 段头字段的偏移量
+    private static final int OF_SEG_FIRST_LSN = 0;                  // 段中第一条日志开头的LSN 8字节
+    private static final int OF_SEG_VERSION = OF_SEG_FIRST_LSN + 8; // 日志格式的版本 4字节
+    private static final int OF_SEG_LENGTH = OF_SEG_VERSION + 4;    // 封存时日志的总长度 4字节
+    private static final int OF_SEG_CHECKSUM = OF_SEG_LENGTH + 4;   // 封存时所有日志的校验和 4字节
+    static final int SEG_HEADER_SIZE = OF_SEG_CHECKSUM + 4;
+
+    static final int LOG_VERSION = 2;
+
     public static final String LOG_SUFFIX = ".log";
+    public static final int BUFFER_SIZE = 1 << 20;    // 日志缓冲区大小，单条日志不超过一页，远小于缓冲区
+    public static final int SEGMENT_SIZE = 16 << 20;  // 段文件的最大长度
+
+    // 一个段文件
+    private static class Segment {
+        long first;      // 段中第一条日志开头的LSN
+        long end;        // 段中最后一条日志末尾的LSN，包括缓冲区中尚未写入的日志
+        boolean sealed;  // 已经封存，不再追加日志
+        int checksum;    // 封存时段中所有日志的校验和
+        volatile boolean sealWritten;  // 封存信息已经写入段头
+        RandomAccessFile file;
+        FileChannel fc;
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+        Segment(long first) {
+            this.first = first;
+            this.end = first;
+        }
+    }
+
+    private String path;
+    private int segmentSize;
     private Lock lock;
+    private Lock io;        // 写段文件和删除段文件互斥，先于lock获取
+
+    private TreeMap<Long, Segment> segments = new TreeMap<>();  // FirstLsn -> 段，最后一个是正在写入的段
+    private Checksum segChecksum = Crc32c.create();  // 正在写入的段中日志的校验和，包括缓冲区中尚未写入的日志
+    private long position;          // 当前日志指针的LSN
+    private Checksum readChecksum = Crc32c.create(); // 从段的开头顺序读取时，已读日志的校验和
+    private boolean readFromFirst;  // 当前段是否从开头开始读取
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;  // 日志总的校验和
+    private Condition work;     // 有日志需要落盘，或者正在关闭
+    private Condition flushed;  // 有日志落盘，缓冲区腾出了空间
+    private byte[] ring = new byte[BUFFER_SIZE]; // 环形缓冲区，保存LSN在 (durable, end] 内的日志
+    private long end;           // 日志末尾的位置，即最新一条日志的LSN，包括缓冲区中的日志
+    private long durable;       // 已经落盘的日志末尾的位置
+    private long requested;     // 等待落盘的最大LSN
+    private Thread flusher;
+    private boolean closed;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
+    // 统计信息
+    private long records;
+    private long fsyncs;
+
+    LoggerImpl(String path, int segmentSize) {
+        this.path = path;
+        this.segmentSize = segmentSize;
         lock = new ReentrantLock();
+        io = new ReentrantLock();
+        work = lock.newCondition();
+        flushed = lock.newCondition();
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    /*** 创建日志，第一个段从LSN 0开始*/
+    static LoggerImpl create(String path, int segmentSize) {
+        if(!listSegmentFiles(path).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
+        }
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        Segment seg = new Segment(0);
+        lg.segments.put(seg.first, seg);
+        lg.channel(seg);
+        lg.start();
+        return lg;
     }
 
-    /*** 初始化日志文件，读取并验证 XChecksum，移除 Bad Tail*/
-    void init() {
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+    /*** 打开已有的日志*/
+    static LoggerImpl open(String path, int segmentSize) {
+        List<File> files = listSegmentFiles(path);
+        if(files.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
         }
-        if(size < 4) {
-            Panic.panic(Error.BadLogFileException);
+        for (File f : files) {
+            if(!f.canRead() || !f.canWrite()) {
+                Panic.panic(Error.FileCannotRWException);
+            }
         }
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        lg.init(files);
+        lg.start();
+        return lg;
+    }
 
-        // 读取并解析 XChecksum
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
+    /*** 按FirstLsn的顺序列出path的所有段文件*/
+    private static List<File> listSegmentFiles(String path) {
+        File base = new File(path).getAbsoluteFile();
+        String prefix = base.getName() + LOG_SUFFIX + ".";
+        File[] files = base.getParentFile().listFiles(
+                (dir, name) -> name.startsWith(prefix) && name.length() == prefix.length() + 16);
+        List<File> list = new ArrayList<>();
+        if(files != null) {
+            list.addAll(Arrays.asList(files));
+        }
+        list.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return list;
+    }
+
+    private File segmentFile(long first) {
+        return new File(path + LOG_SUFFIX + "." + String.format("%016x", first));
+    }
+
+    /*** 段文件的通道，第一次访问时打开，文件不存在时创建并写入段头*/
+    private FileChannel channel(Segment seg) {
+        synchronized(seg) {
+            if(seg.fc != null) {
+                return seg.fc;
+            }
+            try {
+                seg.file = new RandomAccessFile(segmentFile(seg.first), "rw");
+                seg.fc = seg.file.getChannel();
+                if(seg.fc.size() < SEG_HEADER_SIZE) {
+                    byte[] header = Bytes.concat(Parser.long2Byte(seg.first), Parser.int2Byte(LOG_VERSION),
+                            Parser.int2Byte(0), Parser.int2Byte(0));
+                    seg.fc.write(ByteBuffer.wrap(header), 0);
+                    seg.fc.force(false);
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            return seg.fc;
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
+    }
 
-        checkAndRemoveTail();
+    /*** 启动后台刷日志线程，此后日志从最后一个段的末尾开始追加*/
+    void start() {
+        end = durable = requested = segments.lastEntry().getValue().end;
+        rewind();
+        flusher = new Thread(this, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * 初始化日志：读取所有段头，封存的段直接按段头记录的长度；
+     * 扫描第一个没有封存的段，移除Bad Tail，它之后的段不会有已经落盘的日志，直接删除
+     */
+    void init(List<File> files) {
+        Segment open = null;
+        for (File f : files) {
+            if(open != null) {
+                // 前一个段还没有封存，之后的段是刚创建的空段
+                f.delete();
+                continue;
+            }
+            Segment seg = new Segment(Long.parseLong(f.getName().substring(f.getName().length() - 16), 16));
+            ByteBuffer header = ByteBuffer.allocate(SEG_HEADER_SIZE);
+            try {
+                channel(seg).read(header, 0);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            byte[] raw = header.array();
+            if(Parser.parseLong(Arrays.copyOfRange(raw, OF_SEG_FIRST_LSN, OF_SEG_VERSION)) != seg.first) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            if(Parser.parseInt(Arrays.copyOfRange(raw, OF_SEG_VERSION, OF_SEG_LENGTH)) != LOG_VERSION) {
+                Panic.panic(Error.LogVersionMismatchException);
+            }
+            // 段之间的LSN必须连续
+            if(!segments.isEmpty() && segments.lastEntry().getValue().end != seg.first) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            int length = Parser.parseInt(Arrays.copyOfRange(raw, OF_SEG_LENGTH, OF_SEG_CHECKSUM));
+            if(length > 0) {
+                seg.sealed = true;
+                seg.sealWritten = true;
+                seg.end = seg.first + length;
+                seg.checksum = Parser.parseInt(Arrays.copyOfRange(raw, OF_SEG_CHECKSUM, SEG_HEADER_SIZE));
+            } else {
+                open = seg;
+                checkAndRemoveTail(seg);
+            }
+            segments.put(seg.first, seg);
+        }
+        if(open == null) {
+            // 所有段都已封存，从新的段开始写
+            long first = segments.lastEntry().getValue().end;
+            segments.put(first, new Segment(first));
+        }
     }
 
     /**
-     * 从文件中读取下一条日志，如果日志是Bad Tail或读完最后一条日志则返回null。
+     * 从段文件中读取LSN为lsn的位置开始的一条日志，日志不能超过limit，如果日志是Bad Tail则返回null。
      */
-    private byte[] internNext() {
-        if(position + OF_DATA >= fileSize) {
+    private byte[] readLog(Segment seg, long lsn, long limit) {
+        if(lsn + OF_DATA > limit) {
             return null;
         }
+        FileChannel fc = channel(seg);
+        long offset = SEG_HEADER_SIZE + lsn - seg.first;
         // 读取日志条目的大小（前四个字节）
         ByteBuffer tmp = ByteBuffer.allocate(4);
         try {
-            fc.position(position);
-            fc.read(tmp);
+            fc.read(tmp, offset);
         } catch(IOException e) {
             Panic.panic(e);
         }
         int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) {
+        if(size < 0 || lsn + size + OF_DATA > limit) {
             return null;
         }
 
         // 读取完整的日志条目（包括大小、校验和、数据）
         ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
         try {
-            fc.position(position);
-            fc.read(buf);
+            fc.read(buf, offset);
         } catch(IOException e) {
             Panic.panic(e);
         }
 
         // 通过校验和验证日志条目的完整性
         byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
+        int checkSum1 = Crc32c.checksum(log, OF_DATA, size);
         int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
         if(checkSum1 != checkSum2) {
             return null;
         }
-
-        position += log.length;
         return log;
     }
 
     /**
-     * 计算校验和函数
+     * 把一条日志累加到段校验和中，只计算 [Size] [Checksum]，日志数据已经由每条日志的校验和覆盖
      */
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    private static void updateSegChecksum(Checksum checksum, byte[] log) {
+        checksum.update(log, 0, OF_DATA);
     }
 
-
     /**
-     * 检查并移除Bad Tail
+     * 检查并移除没有封存的段的Bad Tail
      * Bad Tail 可能出现在数据库异常关闭时，最后一条日志可能只写入了部分数据
      */
-    private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
+    private void checkAndRemoveTail(Segment seg) {
+        long limit = 0;
+        try {
+            limit = seg.first + channel(seg).size() - SEG_HEADER_SIZE;
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        segChecksum.reset();
+        long lsn = seg.first;
         while(true) {
-            byte[] log = internNext();
+            byte[] log = readLog(seg, lsn, limit);
             if(log == null) break;
-            xCheck = calChecksum(xCheck, log);
-        }
-
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+            updateSegChecksum(segChecksum, log);
+            lsn += log.length;
         }
-
         try {
             // 截断文件，移除Bad Tail
-            truncate(position);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            // 将文件指针重新定位到截断位置
-            file.seek(position);
+            channel(seg).truncate(SEG_HEADER_SIZE + lsn - seg.first);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        rewind();
+        seg.end = lsn;
     }
 
 
     /**
-     * 记录一条日志，参数是新增的日志数据
+     * 记录一条日志，参数是新增的日志数据，返回日志的LSN。
+     * 日志只复制到缓冲区，不等待落盘；缓冲区满时请求写出并等待腾出空间
      */
     @Override
-    public void log(byte[] data) {
+    public long log(byte[] data) {
         byte[] log = wrapLog(data);
 
-        ByteBuffer buf = ByteBuffer.wrap(log);
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+            while(end + log.length - durable > BUFFER_SIZE) {
+                request(end);
+                flushed.awaitUninterruptibly();
+            }
+            Segment seg = segments.lastEntry().getValue();
+            if(end > seg.first && SEG_HEADER_SIZE + end - seg.first + log.length > segmentSize) {
+                // 当前段放不下，封存后开始新的段，封存信息由刷日志线程写入段头
+                seg.sealed = true;
+                seg.checksum = (int)segChecksum.getValue();
+                seg = new Segment(end);
+                segments.put(seg.first, seg);
+                segChecksum.reset();
+            }
+            int from = (int)(end % BUFFER_SIZE);
+            int first = Math.min(log.length, BUFFER_SIZE - from);
+            System.arraycopy(log, 0, ring, from, first);
+            System.arraycopy(log, first, ring, 0, log.length - first);
+            end += log.length;
+            seg.end = end;
+            updateSegChecksum(segChecksum, log);
+            records ++;
+            return end;
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
+    }
+
+    /**
+     * 等待LSN不超过lsn的日志都落盘，并发等待的调用者由同一次force唤醒
+     */
+    @Override
+    public void flush(long lsn) {
+        lock.lock();
+        try {
+            lsn = Math.min(lsn, end);
+            if(durable >= lsn) {
+                return;
+            }
+            request(lsn);
+            while(durable < lsn) {
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 请求把日志落盘到lsn，调用方持有锁 */
+    private void request(long lsn) {
+        if(lsn > requested) {
+            requested = lsn;
+            work.signal();
+        }
+    }
+
+    /**
+     * 后台刷日志线程：有人等待落盘时，把缓冲区中的所有日志写入所在的段文件，每个写到的段force一次。
+     * 封存的段写完最后一条日志先force，再写入段头并force，之后才写下一个段：段头落盘时段中的日志一定已经落盘，
+     * 下一个段中有日志时前面的段一定已经封存。
+     * 写文件期间其他线程可以继续追加日志，缓冲区中未落盘的部分不会被覆盖
+     */
+    @Override
+    public void run() {
+        while(true) {
+            lock.lock();
+            try {
+                while(requested <= durable && !closed) {
+                    work.awaitUninterruptibly();
+                }
+                if(closed && end == durable && !hasUnwrittenSeal()) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // 写文件期间段文件不会被删除
+            io.lock();
+            try {
+                long batchEnd;
+                List<Segment> touched = new ArrayList<>();
+                List<long[]> ranges = new ArrayList<>();  // 每个段要写入的LSN范围 [lo, hi)
+                lock.lock();
+                try {
+                    long batchStart = durable;
+                    batchEnd = end;
+                    for (Segment seg : segments.values()) {
+                        if(seg.end > batchStart || (seg.sealed && !seg.sealWritten)) {
+                            long lo = Math.max(batchStart, seg.first);
+                            touched.add(seg);
+                            ranges.add(new long[]{lo, Math.max(lo, Math.min(batchEnd, seg.end))});
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    for (int i = 0; i < touched.size(); i ++) {
+                        Segment seg = touched.get(i);
+                        long lo = ranges.get(i)[0], hi = ranges.get(i)[1];
+                        FileChannel fc = channel(seg);
+                        long offset = SEG_HEADER_SIZE + lo - seg.first;
+                        int from = (int)(lo % BUFFER_SIZE);
+                        int length = (int)(hi - lo);
+                        int first = Math.min(length, BUFFER_SIZE - from);
+                        fc.write(ByteBuffer.wrap(ring, from, first), offset);
+                        if(first < length) {
+                            fc.write(ByteBuffer.wrap(ring, 0, length - first), offset + first);
+                        }
+                        fc.force(false);
+                        // 封存的段的日志落盘后再写入段头并再次force，段头不会先于日志落盘。段封存后end和checksum不再变化
+                        if(isSealed(seg) && hi == seg.end) {
+                            byte[] seal = Bytes.concat(Parser.int2Byte((int)(seg.end - seg.first)), Parser.int2Byte(seg.checksum));
+                            fc.write(ByteBuffer.wrap(seal), OF_SEG_LENGTH);
+                            fc.force(false);
+                            seg.sealWritten = true;
+                        }
+                    }
+                } catch(IOException e) {
+                    Panic.panic(e);
+                }
+
+                lock.lock();
+                try {
+                    durable = batchEnd;
+                    fsyncs ++;
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            } finally {
+                io.unlock();
+            }
+        }
+    }
+
+    private boolean isSealed(Segment seg) {
+        lock.lock();
+        try {
+            return seg.sealed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 是否有封存的段还没有写入段头，调用方持有锁 */
+    private boolean hasUnwrittenSeal() {
+        for (Segment seg : segments.values()) {
+            if(seg.sealed && !seg.sealWritten) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * 包装日志条目，添加Size和校验和
      */
     private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
+        byte[] checksum = Parser.int2Byte(Crc32c.checksum(data));
         byte[] size = Parser.int2Byte(data.length);
         return Bytes.concat(size, checksum, data);
     }
 
     /**
-     * 更新整体日志的校验和 XChecksum
+     * 读取下一条日志，如果没有更多日志则返回null。
+     * 从开头读完一个封存的段时验证段校验和；封存的段中出现无法解析的日志说明文件已损坏
      */
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public byte[] next() {
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            fc.force(false);
-        } catch(IOException e) {
-            Panic.panic(e);
+            if(position >= durable) {
+                return null;
+            }
+            Segment seg = segments.floorEntry(position).getValue();
+            if(position == seg.first) {
+                readFromFirst = true;
+                readChecksum.reset();
+            }
+            byte[] log = readLog(seg, position, Math.min(seg.end, durable));
+            if(log == null) {
+                if(seg.sealed) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+                return null;
+            }
+            position += log.length;
+            updateSegChecksum(readChecksum, log);
+            if(seg.sealed && position == seg.end && readFromFirst && (int)readChecksum.getValue() != seg.checksum) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            return Arrays.copyOfRange(log, OF_DATA, log.length);
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * 截断日志文件到指定位置
+     * 将日志读取指针重置到第一个段的起始位置。
      */
     @Override
-    public void truncate(long x) throws Exception {
+    public void rewind() {
+        rewind(0);
+    }
+
+    /**
+     * 将日志读取指针移动到LSN为lsn的位置，lsn早于第一个段时从第一个段的开头读取
+     */
+    @Override
+    public void rewind(long lsn) {
         lock.lock();
         try {
-            fc.truncate(x);
+            position = Math.max(lsn, segments.firstKey());
+            readFromFirst = false;
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 读取下一条日志，如果没有更多日志则返回null。
+     * 删除所有日志都在lsn之前、并且已经封存落盘的段，lsn所在的段保留
      */
     @Override
-    public byte[] next() {
+    public void truncateBefore(long lsn) {
+        io.lock();
+        try {
+            lock.lock();
+            try {
+                while(segments.size() > 1) {
+                    Segment seg = segments.firstEntry().getValue();
+                    if(!seg.sealWritten || seg.end > lsn) {
+                        break;
+                    }
+                    segments.pollFirstEntry();
+                    if(seg.fc != null) {
+                        seg.fc.close();
+                        seg.file.close();
+                    }
+                    segmentFile(seg.first).delete();
+                }
+                position = Math.max(position, segments.firstKey());
+            } catch(IOException e) {
+                Panic.panic(e);
+            } finally {
+                lock.unlock();
+            }
+        } finally {
+            io.unlock();
+        }
+    }
+
+    @Override
+    public long end() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if(log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            return end;
         } finally {
             lock.unlock();
         }
     }
 
-    /**
-     * 将日志读取指针重置到日志文件的起始位置。
-     */
     @Override
-    public void rewind() {
-        position = 4;
+    public String stats() {
+        lock.lock();
+        try {
+            return String.format("log: records %d, fsyncs %d, %d bytes in %d segments%n",
+                    records, fsyncs, end - segments.firstKey(), segments.size());
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * 关闭日志文件并释放相关资源
+     * 关闭日志并释放相关资源，关闭前把缓冲区中的日志写完
      */
     @Override
     public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
         try {
-            fc.close();
-            file.close();
+            for (Segment seg : segments.values()) {
+                if(seg.fc != null) {
+                    seg.fc.close();
+                    seg.file.close();
+                }
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
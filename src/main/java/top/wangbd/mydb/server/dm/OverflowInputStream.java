@@ -0,0 +1,80 @@
+package top.wangbd.mydb.server.dm;
+
+import top.wangbd.mydb.server.common.SubArray;
+import top.wangbd.mydb.server.dm.dataItem.DataItem;
+import top.wangbd.mydb.server.utils.Parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * 顺序读取溢出的数据：先返回行内保留的部分，再沿着链表逐个读入溢出块，
+ * 同一时刻只在内存中保存一个溢出块
+ */
+class OverflowInputStream extends InputStream {
+    private DataManagerImpl dm;
+    private byte[] buf;     // 当前正在读取的部分，开始时是行内的部分
+    private int pos;
+    private long next;      // 下一个溢出块的uid，0表示没有了
+    private int remaining;  // 尚未读入的溢出部分的长度
+
+    OverflowInputStream(DataManagerImpl dm, byte[] head, long next, int length) {
+        this.dm = dm;
+        this.buf = head;
+        this.next = next;
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(!fill()) {
+            return -1;
+        }
+        return buf[pos ++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if(len == 0) {
+            return 0;
+        }
+        if(!fill()) {
+            return -1;
+        }
+        int n = Math.min(len, buf.length - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return buf.length - pos;
+    }
+
+    /** 当前部分读完时读入下一个溢出块，没有更多数据时返回false */
+    private boolean fill() throws IOException {
+        while(pos == buf.length) {
+            if(next == 0 || remaining == 0) {
+                return false;
+            }
+            DataItem di;
+            try {
+                di = dm.readChunk(next);
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+            try {
+                SubArray sa = di.data();
+                next = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+                buf = Arrays.copyOfRange(sa.raw, sa.start+8, sa.end);
+                pos = 0;
+                remaining -= buf.length;
+            } finally {
+                di.release();
+            }
+        }
+        return true;
+    }
+}
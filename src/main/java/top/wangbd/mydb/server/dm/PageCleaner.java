@@ -0,0 +1,102 @@
+package top.wangbd.mydb.server.dm;
+
+import top.wangbd.mydb.server.dm.Logger.Logger;
+import top.wangbd.mydb.server.dm.pageCache.PageCache;
+import top.wangbd.mydb.server.dm.pageIndex.FreeSpaceMap;
+
+import java.util.HashMap;
+
+/**
+ * 后台刷脏线程
+ * <p>
+ * 每隔 FLUSH_INTERVAL 毫秒把页面缓存中的脏页按页号顺序写回，整批只调用一次 force，
+ * 前台事务释放页面或驱逐脏页时不再需要等待数据文件刷盘。
+ * </p>
+ * <p>
+ * 每 CHECKPOINT_ROUNDS 轮做一次模糊检查点：先记下当前日志末尾的位置和活跃事务表，再写回所有脏页，
+ * 全部写回并把数据文件刷盘后把它们记入检查点文件。检查点期间前台事务照常执行，写回的页面中可能包含
+ * 该位置之后的修改，重做日志是幂等的，不影响恢复。检查点成功后同时保存空闲空间表，
+ * 并丢弃恢复不再需要的日志：检查点位置和活跃事务的第一条日志中较早者之前的部分。
+ * </p>
+ */
+public class PageCleaner implements Runnable {
+    static final long FLUSH_INTERVAL = 1000;   // 刷脏间隔，单位毫秒
+    static final int CHECKPOINT_ROUNDS = 30;   // 每隔多少轮刷脏做一次检查点
+
+    private PageCache pc;
+    private Logger logger;
+    private ActiveTransactionTable att;
+    private Checkpoint checkpoint;
+    private FreeSpaceMap fsm;
+
+    private Thread thread;
+    private volatile boolean stopped;
+
+    PageCleaner(PageCache pc, Logger logger, ActiveTransactionTable att, Checkpoint checkpoint, FreeSpaceMap fsm) {
+        this.pc = pc;
+        this.logger = logger;
+        this.att = att;
+        this.checkpoint = checkpoint;
+        this.fsm = fsm;
+    }
+
+    /** 启动后台线程 */
+    void start() {
+        thread = new Thread(this, "page-cleaner");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** 停止后台线程，并等待正在进行的一轮写回结束 */
+    void shutdown() {
+        stopped = true;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        int round = 0;
+        while(!stopped) {
+            try {
+                Thread.sleep(FLUSH_INTERVAL);
+            } catch (InterruptedException e) {
+                break;
+            }
+            round ++;
+            if(round % CHECKPOINT_ROUNDS == 0) {
+                checkpoint();
+            } else {
+                pc.flushDirtyPages();
+            }
+        }
+    }
+
+    /**
+     * 做一次模糊检查点，有脏页正在被修改而无法写回时放弃本次检查点，返回是否成功。
+     * 修改页面的一方在写日志之前标记脏页并开始修改，检查点位置之前的日志修改的页面要么已经写回，要么会被跳过
+     */
+    boolean checkpoint() {
+        Checkpoint.State st = new Checkpoint.State();
+        st.active = new HashMap<>();
+        st.position = att.mark(st.active);
+        st.pageNumber = pc.getPageNumber();
+        if(pc.flushDirtyPages() > 0) {
+            return false;
+        }
+        // 驱逐和新建页面时写入的页面没有刷盘，丢弃日志之前它们必须已经落盘
+        pc.sync();
+        // 检查点之前的日志都要落盘，写回的页面只会让其中一部分先落盘
+        logger.flush(st.position);
+        checkpoint.update(st.position, st.pageNumber, st.active);
+        // 顺便保存空闲空间表，崩溃后打开时只需读取之后新建的页面
+        fsm.save();
+        // 检查点文件已经替换，之前的日志不再需要
+        logger.truncateBefore(st.recoverFrom());
+        return true;
+    }
+}
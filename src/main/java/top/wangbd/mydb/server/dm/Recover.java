@@ -8,6 +8,7 @@ import top.wangbd.mydb.server.dm.page.Page;
 import top.wangbd.mydb.server.dm.page.PageX;
 import top.wangbd.mydb.server.dm.pageCache.PageCache;
 import top.wangbd.mydb.server.tm.TransactionManager;
+import top.wangbd.mydb.server.tm.TransactionManagerImpl;
 import top.wangbd.mydb.server.utils.Panic;
 import top.wangbd.mydb.server.utils.Parser;
 
@@ -17,8 +18,16 @@ public class Recover {
     // 规定两种日志格式的字节标识
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
-    // updateLog: [LogType] [XID] [UID] [OldRaw] [NewRaw]
-    // insertLog: [LogType] [XID] [Pgno] [Offset] [Raw]
+    private static final byte LOG_TYPE_FREE = 2;
+    private static final byte LOG_TYPE_COMPACT = 3;
+    private static final byte LOG_TYPE_BATCH_INSERT = 4;
+    // updateLog:  [LogType] [XID] [UID] [Offset] [OldRaw] [NewRaw]
+    // insertLog:  [LogType] [XID] [Pgno] [Slot] [Offset] [Raw]
+    // freeLog:    [LogType] [XID] [Pgno] [Slot]
+    // compactLog: [LogType] [XID] [Pgno] [Image]
+    // batchInsertLog: [LogType] [XID] [Pgno] [Count] {[Slot] [Offset] [Length] [Raw]} * Count
+    // 批量插入日志记录同一页面中的多条插入，重做和撤销时按单条插入处理
+    // 释放槽和整理页面不属于任何事务，XID为SUPER_XID，只需要重做
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
@@ -28,54 +37,74 @@ public class Recover {
     private static final int OF_TYPE = 0; //日志类型 1字节
     private static final int OF_XID = OF_TYPE+1; // 事务ID 8字节
     /*** 更新日志字段的偏移量*/
-    // [LogType] [XID] [UID] [OldRaw] [NewRaw]
+    // [LogType] [XID] [UID] [Offset] [OldRaw] [NewRaw]
     private static final int OF_UPDATE_UID = OF_XID+8; // 数据项唯一标识 8字节
-    private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8; // 旧数据起始位置
+    private static final int OF_UPDATE_OFFSET = OF_UPDATE_UID+8; // 更新时数据的页内偏移 2字节
+    private static final int OF_UPDATE_RAW = OF_UPDATE_OFFSET+2; // 旧数据起始位置
     /*** 插入日志字段的偏移量*/
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Slot] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;  // 页号 4字节
-    private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4; // 偏移量 2字节
+    private static final int OF_INSERT_SLOT = OF_INSERT_PGNO+4; // 槽号 2字节
+    private static final int OF_INSERT_OFFSET = OF_INSERT_SLOT+2; // 偏移量 2字节
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2; // 数据起始位置
+    /*** 释放槽和整理页面日志字段的偏移量*/
+    private static final int OF_PAGE_PGNO = OF_XID+8;  // 页号 4字节
+    private static final int OF_FREE_SLOT = OF_PAGE_PGNO+4; // 槽号 2字节
+    private static final int OF_COMPACT_IMAGE = OF_PAGE_PGNO+4; // 整理后的页面数据
+    /*** 批量插入日志字段的偏移量*/
+    private static final int OF_BATCH_COUNT = OF_PAGE_PGNO+4; // 插入条数 2字节
+    private static final int OF_BATCH_ITEMS = OF_BATCH_COUNT+2; // 第一条插入的起始位置
 
     // 插入日志的信息结构
     static class InsertLogInfo {
         long xid;
         int pgno;
+        short slot;
         short offset;
         byte[] raw;
     }
 
     // 更新日志的信息结构
-    // uid 是记录（DataItem）的全局标识符，把页号和页内偏移合并成一个 long 存储。
-    // [高 32 位: pgno][中 16 位: 未用][低 16 位: offset]（即 uid = (pgno << 32) | offset）。
+    // uid 是记录（DataItem）的全局标识符，把页号和槽号合并成一个 long 存储。
+    // [高 32 位: pgno][中 16 位: 未用][低 16 位: slot]（即 uid = (pgno << 32) | slot）。
     static class UpdateLogInfo {
         long xid;
         int pgno;
+        short slot;
         short offset;
         byte[] oldRaw;
         byte[] newRaw;
     }
 
     /**
-     * 数据库恢复入口
+     * 数据库恢复入口，checkpoint是最近一次检查点，没有检查点时为null，从头读取日志。
+     * 有检查点时从检查点位置和当时活跃事务的第一条日志中较早的位置开始读取：
+     * 检查点之前的修改都已写入数据库文件，只有当时未结束的事务可能需要撤销更早的修改
      */
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, Checkpoint.State checkpoint) {
         System.out.println("Recovering...");
 
-        lg.rewind();
+        long from = 0;
+        int maxPgno = 0;
+        if(checkpoint != null) {
+            from = checkpoint.recoverFrom();
+            // 检查点开始时已有的页面都已写入数据库文件，不能截断
+            maxPgno = checkpoint.pageNumber;
+            System.out.println("Recover from log position " + from + ".");
+        }
+        lg.rewind(from);
 
         // 找到日志中涉及的最大页号
-        int maxPgno = 0;
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
             int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
+            if(isUpdateLog(log)) {
                 UpdateLogInfo li = parseUpdateLog(log);
                 pgno = li.pgno;
+            } else {
+                // 插入、批量插入、释放槽和整理页面日志的页号位置相同
+                pgno = parsePageLogPgno(log);
             }
             if(pgno > maxPgno) {
                 maxPgno = pgno;
@@ -88,71 +117,109 @@ public class Recover {
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTransactions(tm, lg, pc);
+        redoTransactions(tm, lg, pc, from);
         System.out.println("Redo Transactions Over.");
 
-        undoTransactions(tm, lg, pc);
+        undoTransactions(tm, lg, pc, from);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
 
     }
 
-    /*** 生成一条插入日志*/
+    /*** 生成一条插入日志，槽号和偏移是raw插入pg时将要使用的位置*/
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] slotRaw = Parser.short2Byte(PageX.nextSlot(pg));
+        byte[] offsetRaw = Parser.short2Byte(PageX.nextOffset(pg, raw.length));
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw, offsetRaw, raw);
+    }
+
+    /*** 生成一条批量插入日志，raws已按slots中的槽号插入pg*/
+    public static byte[] batchInsertLog(long xid, Page pg, List<Short> slots, List<byte[]> raws) {
+        byte[] logTypeRaw = {LOG_TYPE_BATCH_INSERT};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
+        byte[] countRaw = Parser.short2Byte((short)slots.size());
+        byte[] log = Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, countRaw);
+        for (int i = 0; i < slots.size(); i ++) {
+            short slot = slots.get(i);
+            byte[] raw = raws.get(i);
+            log = Bytes.concat(log, Parser.short2Byte(slot), Parser.short2Byte(PageX.getSlotOffset(pg, slot)),
+                    Parser.short2Byte((short)raw.length), raw);
+        }
+        return log;
+    }
+
+    /*** 生成一条释放槽日志*/
+    public static byte[] freeLog(Page pg, short slot) {
+        byte[] logTypeRaw = {LOG_TYPE_FREE};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
+        byte[] slotRaw = Parser.short2Byte(slot);
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, slotRaw);
+    }
+
+    /*** 生成一条整理页面日志，记录整理后的整页数据。整理会移动数据，不能按之前日志中的偏移重做*/
+    public static byte[] compactLog(Page pg, byte[] image) {
+        byte[] logTypeRaw = {LOG_TYPE_COMPACT};
+        byte[] xidRaw = Parser.long2Byte(TransactionManagerImpl.SUPER_XID);
+        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
+        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, image);
     }
 
-    /*** 生成一条更新日志*/
+    /*** 生成一条更新日志，记录数据此时在页面中的偏移*/
     public static byte[] updateLog(long xid, DataItem di) {
         byte[] logType = {LOG_TYPE_UPDATE};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] uidRaw = Parser.long2Byte(di.getUid());
-        byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
+        byte[] offsetRaw = Parser.short2Byte((short)raw.start);
+        byte[] oldRaw = di.getOldRaw();
         byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        return Bytes.concat(logType, xidRaw, uidRaw, offsetRaw, oldRaw, newRaw);
     }
 
-    /*** 重做日志*/
-    public static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        // 日志文件指针回到文件开头
-        lg.rewind();
+    /*** 重做LSN为from之后的日志*/
+    public static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc, long from) {
+        // 日志文件指针回到开始恢复的位置
+        lg.rewind(from);
 
         while (true) {
             // 读取下一条日志
             byte[] log_data = lg.next();
             if(log_data == null) break;
             if (isInsertLog(log_data)) {
-                // 解析插入日志
-                InsertLogInfo li = parseInsertLog(log_data);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, li, REDO);
+                // 解析插入日志，批量插入日志拆成多条插入
+                for (InsertLogInfo li : parseInsertLogs(log_data)) {
+                    if(!tm.isActive(li.xid)) {
+                        doInsertLog(pc, li, REDO);
+                    }
                 }
-            } else {
+            } else if (isUpdateLog(log_data)) {
                 // 解析更新日志
                 UpdateLogInfo xi = parseUpdateLog(log_data);
                 long xid = xi.xid;
                 if(!tm.isActive(xid)) {
                     doUpdateLog(pc, xi, REDO);
                 }
+            } else {
+                // 释放槽和整理页面总是重做
+                doPageLog(pc, log_data);
             }
         }
     }
 
     /**
-     * 撤销未提交的事务
+     * 撤销未提交的事务，这些事务的日志都在LSN为from之后
      */
-    public static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
+    public static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc, long from) {
         // 记录所有未提交的事务的日志 [事务ID 日志列表]
         Map<Long, List<byte[]>> logCache = new HashMap<>();
-        // 日志文件指针回到文件开头
-        lg.rewind();
+        // 日志文件指针回到开始恢复的位置
+        lg.rewind(from);
 
         // 遍历日志文件，找到所有未提交事务的日志并记录下来
         while (true) {
@@ -161,15 +228,14 @@ public class Recover {
             if(log_data == null) break;
             if (isInsertLog(log_data)) {
                 // 解析插入日志
-                InsertLogInfo li = parseInsertLog(log_data);
-                long xid = li.xid;
+                long xid = parseLogXid(log_data);
                 if (tm.isActive(xid)) {
                     if (!logCache.containsKey(xid)) {
                         logCache.put(xid, new ArrayList<>());
                     }
                     logCache.get(xid).add(log_data);
                 }
-            } else {
+            } else if (isUpdateLog(log_data)) {
                 // 解析更新日志
                 UpdateLogInfo xi = parseUpdateLog(log_data);
                 long xid = xi.xid;
@@ -190,8 +256,10 @@ public class Recover {
             for (int i = value.size() - 1; i >= 0; i--) {
                 byte[] log_data = value.get(i);
                 if (isInsertLog(log_data)) {
-                    InsertLogInfo li = parseInsertLog(log_data);
-                    doInsertLog(pc, li, UNDO);
+                    List<InsertLogInfo> lis = parseInsertLogs(log_data);
+                    for (int j = lis.size() - 1; j >= 0; j--) {
+                        doInsertLog(pc, lis.get(j), UNDO);
+                    }
                 } else {
                     UpdateLogInfo xi = parseUpdateLog(log_data);
                     doUpdateLog(pc, xi, UNDO);
@@ -208,7 +276,6 @@ public class Recover {
      */
     private static void doUpdateLog(PageCache pc, UpdateLogInfo xi, int flag) {
         int pgno = xi.pgno;
-        short offset = xi.offset;
         byte[] raw;
         if (flag == REDO) {
             raw = xi.newRaw;
@@ -223,7 +290,17 @@ public class Recover {
             Panic.panic(e);
         }
         try {
-            PageX.recoverUpdate(pg, raw, offset);
+            if (flag == REDO) {
+                // 写回的页面可能比日志新，槽可能已被释放并复用，按日志中的偏移重做，
+                // 之后的插入和整理页面日志会覆盖这个位置上后来的数据
+                PageX.recoverUpdate(pg, raw, xi.offset);
+            } else {
+                // 撤销时其他日志都已重做，整理页面会移动数据，按槽找到数据当前的位置
+                short offset = PageX.getSlotOffset(pg, xi.slot);
+                if(offset != 0) {
+                    PageX.recoverUpdate(pg, raw, offset);
+                }
+            }
         } finally {
             pg.release();
         }
@@ -241,28 +318,92 @@ public class Recover {
         }
         try {
             if (flag == UNDO){
-                // 把数据的有效位置为无效，因此下面的插入不在else内，而是必经路径
+                // 把数据的有效位置为无效。插入之后页面可能被整理过，按槽找到数据当前的位置；
+                // 页面中没有这条数据时按日志中的位置插入无效的数据，占住槽号，避免被复用
                 DataItem.setDataItemRawInvalid(li.raw);
+                short offset = PageX.getSlotOffset(pg, li.slot);
+                if(offset != 0) {
+                    PageX.recoverUpdate(pg, li.raw, offset);
+                } else {
+                    PageX.recoverInsert(pg, li.raw, li.slot, li.offset);
+                }
+            } else {
+                // 向该页指定的槽和偏移位置插入数据
+                PageX.recoverInsert(pg, li.raw, li.slot, li.offset);
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    /**
+     * 重做释放槽或整理页面
+     */
+    private static void doPageLog(PageCache pc, byte[] log) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(parsePageLogPgno(log));
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if(log[OF_TYPE] == LOG_TYPE_FREE) {
+                short slot = Parser.parseShort(Arrays.copyOfRange(log, OF_FREE_SLOT, OF_FREE_SLOT+2));
+                PageX.free(pg, slot);
+            } else {
+                PageX.applyCompacted(pg, Arrays.copyOfRange(log, OF_COMPACT_IMAGE, log.length));
             }
-            // 向该页指定偏移位置插入数据
-            PageX.recoverInsert(pg, li.raw, li.offset);
         } finally {
             pg.release();
         }
     }
 
 
-    /*** 判断日志是否为插入日志或更新日志*/
+    /*** 判断日志是否为插入日志（包括批量插入日志）或更新日志*/
     private static boolean isInsertLog(byte[] log) {
-        // 日志的第一个字节表示日志类型，只有插入和更新两种类型
-        return log[0] == LOG_TYPE_INSERT;
+        // 日志的第一个字节表示日志类型
+        return log[0] == LOG_TYPE_INSERT || log[0] == LOG_TYPE_BATCH_INSERT;
+    }
+
+    private static boolean isUpdateLog(byte[] log) {
+        return log[0] == LOG_TYPE_UPDATE;
+    }
+
+    /*** 解析日志的事务ID*/
+    private static long parseLogXid(byte[] log) {
+        return Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_XID+8));
+    }
+
+    /*** 解析插入日志或批量插入日志，返回其中的每一条插入*/
+    private static List<InsertLogInfo> parseInsertLogs(byte[] log) {
+        if(log[OF_TYPE] == LOG_TYPE_INSERT) {
+            return Collections.singletonList(parseInsertLog(log));
+        }
+        long xid = parseLogXid(log);
+        int pgno = parsePageLogPgno(log);
+        int count = Parser.parseShort(Arrays.copyOfRange(log, OF_BATCH_COUNT, OF_BATCH_ITEMS));
+        List<InsertLogInfo> lis = new ArrayList<>(count);
+        int pos = OF_BATCH_ITEMS;
+        for (int i = 0; i < count; i ++) {
+            InsertLogInfo li = new InsertLogInfo();
+            li.xid = xid;
+            li.pgno = pgno;
+            li.slot = Parser.parseShort(Arrays.copyOfRange(log, pos, pos+2));
+            li.offset = Parser.parseShort(Arrays.copyOfRange(log, pos+2, pos+4));
+            short length = Parser.parseShort(Arrays.copyOfRange(log, pos+4, pos+6));
+            li.raw = Arrays.copyOfRange(log, pos+6, pos+6+length);
+            pos += 6 + length;
+            lis.add(li);
+        }
+        return lis;
     }
 
     /*** 解析插入日志*/
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
+        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_SLOT));
+        li.slot = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_SLOT, OF_INSERT_OFFSET));
         li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
@@ -273,11 +414,12 @@ public class Recover {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
 
-        // 解析 uid，拆分为 pgno 和 offset
+        // 解析 uid，拆分为 pgno 和 slot
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.slot = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32; // >>= 保留符号位（算术右移），>>>= 用 0 填充（逻辑右移）
         li.pgno = (int)(uid & ((1L << 32) - 1));
+        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_UPDATE_OFFSET, OF_UPDATE_RAW));
 
         // 解析 oldRaw 和 newRaw
         int length = (log.length - OF_UPDATE_RAW) / 2;
@@ -286,6 +428,11 @@ public class Recover {
         return li;
     }
 
+    /*** 解析插入、批量插入、释放槽或整理页面日志的页号*/
+    private static int parsePageLogPgno(byte[] log) {
+        return Parser.parseInt(Arrays.copyOfRange(log, OF_PAGE_PGNO, OF_PAGE_PGNO+4));
+    }
+
 
     /**
      * 其实也可以把redo和undo合并成一个方法
@@ -298,14 +445,15 @@ public class Recover {
             byte[] log = lg.next();
             if (log == null) break;
             if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
+                long xid = parseLogXid(log);
                 if (!tm.isActive(xid)) {
-                    doInsertLog(pc, li, REDO);
+                    for (InsertLogInfo li : parseInsertLogs(log)) {
+                        doInsertLog(pc, li, REDO);
+                    }
                 } else {
                     activeLogs.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
                 }
-            } else {
+            } else if (isUpdateLog(log)) {
                 UpdateLogInfo xi = parseUpdateLog(log);
                 long xid = xi.xid;
                 if (!tm.isActive(xid)) {
@@ -313,6 +461,8 @@ public class Recover {
                 } else {
                     activeLogs.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
                 }
+            } else {
+                doPageLog(pc, log);
             }
         }
 
@@ -322,8 +472,10 @@ public class Recover {
             for (int i = logs.size() - 1; i >= 0; i--) {
                 byte[] log = logs.get(i);
                 if (isInsertLog(log)) {
-                    InsertLogInfo li = parseInsertLog(log);
-                    doInsertLog(pc, li, UNDO);
+                    List<InsertLogInfo> lis = parseInsertLogs(log);
+                    for (int j = lis.size() - 1; j >= 0; j--) {
+                        doInsertLog(pc, lis.get(j), UNDO);
+                    }
                 } else {
                     UpdateLogInfo ui = parseUpdateLog(log);
                     doUpdateLog(pc, ui, UNDO);
@@ -4,6 +4,7 @@ import com.google.common.primitives.Bytes;
 import top.wangbd.mydb.server.common.SubArray;
 import top.wangbd.mydb.server.dm.DataManagerImpl;
 import top.wangbd.mydb.server.dm.page.Page;
+import top.wangbd.mydb.server.dm.page.PageX;
 import top.wangbd.mydb.server.utils.Parser;
 import top.wangbd.mydb.server.utils.Types;
 
@@ -11,10 +12,19 @@ import java.util.Arrays;
 
 /**
  *  [ValidFlag] [DataSize] [Data]
- *  ValidFlag 1字节，0为合法，1为非法
+ *  ValidFlag 1字节，最低位0为合法，1为非法；次低位为1表示数据存放在溢出页中
  *  DataSize  2字节，标识Data的长度
+ *  <p>
+ *  超过一页的数据只在行内保留前 INLINE_SIZE 字节，其余部分按页切分为一串溢出块，行内记录溢出部分的长度和第一块的uid：
+ *  [ValidFlag] [DataSize] [Head] [OverflowLength 4字节] [OverflowUid 8字节]
+ *  溢出块也是DataItem，Data为 [NextUid 8字节] [Chunk]，最后一块的NextUid为0。
+ *  data()只返回行内的Head，上层可以像普通数据一样原地修改头部（如Entry的XMIN和XMAX），完整的数据通过DataManager.openData顺序读取。
+ *  </p>
  */
 public interface DataItem {
+    int INLINE_SIZE = 768;    // 溢出的数据在行内保留的字节数
+    int OVERFLOW_PTR_SIZE = 12; // 行内溢出指针的长度
+
     SubArray data(); // 获取data部分的数据
 
     void before();   // 修改前的操作，保存旧数据
@@ -30,6 +40,7 @@ public interface DataItem {
     long getUid();// 获取唯一标识
     byte[] getOldRaw();// 获取修改前的旧数据
     SubArray getRaw();// 获取整个DataItem的原始数据
+    boolean isOverflow();// 数据是否有一部分存放在溢出页中
 
     /** 将raw数据封装成DataItem格式，前面加上有效位和长度 */
     public static byte[] wrapDataItemRaw(byte[] raw) {
@@ -38,23 +49,36 @@ public interface DataItem {
         return Bytes.concat(valid, size, raw);
     }
 
-    /** 从页面的offset处解析出dataitem
+    /** 生成溢出数据的行内部分，head为保留在行内的数据，length和uid为溢出部分的长度和第一块的uid */
+    public static byte[] wrapOverflowRaw(byte[] head, int length, long uid) {
+        byte[] raw = wrapDataItemRaw(Bytes.concat(head, Parser.int2Byte(length), Parser.long2Byte(uid)));
+        raw[DataItemImpl.OF_VALID] = DataItemImpl.FLAG_OVERFLOW;
+        return raw;
+    }
+
+    /** 从页面的slot槽中解析出dataitem，空闲槽解析为一个无效的dataitem
      *  感觉这个方法应该放在DataItemImpl里面更合适，因为dm没有在方法里使用到，只是作为参数传给DataItem的构造函数
      * */
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm){
+    public static DataItem parseDataItem(Page pg, short slot, DataManagerImpl dm){
+        // 计算uid
+        long uid = Types.addressToUid(pg.getPageNumber(), slot);
+        short offset = PageX.getSlotOffset(pg, slot);
+        if(offset == 0) {
+            byte[] invalid = wrapDataItemRaw(new byte[0]);
+            setDataItemRawInvalid(invalid);
+            return new DataItemImpl(new SubArray(invalid, 0, invalid.length), new byte[invalid.length], pg, uid, dm);
+        }
         byte[] raw = pg.getData();
         // 解析dataitem的数据长度
         short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
         // 计算dataitem的总长度，size + 3（有效位1个字节，size2个字节）
         short length = (short)(size + DataItemImpl.OF_DATA);
-        // 计算uid
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
-    /** 将DataItem置为无效，有效位设为1 */
+    /** 将DataItem置为无效，有效位设为1，保留溢出标志，释放时仍能找到溢出块 */
     public static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OF_VALID] = (byte)1;
+        raw[DataItemImpl.OF_VALID] |= DataItemImpl.FLAG_INVALID;
     }
 
 
@@ -3,6 +3,9 @@ package top.wangbd.mydb.server.dm.dataItem;
 import top.wangbd.mydb.server.common.SubArray;
 import top.wangbd.mydb.server.dm.DataManagerImpl;
 import top.wangbd.mydb.server.dm.page.Page;
+import top.wangbd.mydb.server.utils.Parser;
+
+import java.util.Arrays;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -13,6 +16,8 @@ public class DataItemImpl implements DataItem{
     static final int OF_VALID = 0;
     static final int OF_SIZE = 1;
     static final int OF_DATA = 3;
+    static final byte FLAG_INVALID = 1;
+    static final byte FLAG_OVERFLOW = 2;
 
     private SubArray raw;      // dataitem的全部数据，包括有效位和长度
     private byte[] oldRaw;     // 用于before和unBefore操作，保存修改前的数据
@@ -35,19 +40,39 @@ public class DataItemImpl implements DataItem{
 
     /*** 判断dataitem是否有效 */
     public boolean isValid() {
-        return raw.raw[raw.start+OF_VALID] == (byte)0;
+        return (raw.raw[raw.start+OF_VALID] & FLAG_INVALID) == 0;
+    }
+
+    @Override
+    public boolean isOverflow() {
+        return (raw.raw[raw.start+OF_VALID] & FLAG_OVERFLOW) != 0;
+    }
+
+    /*** 溢出部分的长度 */
+    public int overflowLength() {
+        int pos = raw.end - OVERFLOW_PTR_SIZE;
+        return Parser.parseInt(Arrays.copyOfRange(raw.raw, pos, pos+4));
+    }
+
+    /*** 第一个溢出块的uid */
+    public long overflowUid() {
+        int pos = raw.end - OVERFLOW_PTR_SIZE + 4;
+        return Parser.parseLong(Arrays.copyOfRange(raw.raw, pos, pos+8));
     }
 
     @Override
     public SubArray data() {
-        // 返回DataItem的data部分
-        return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
+        // 返回DataItem的data部分，溢出的数据只返回行内的部分
+        int end = isOverflow() ? raw.end - OVERFLOW_PTR_SIZE : raw.end;
+        return new SubArray(raw.raw, raw.start+OF_DATA, end);
     }
 
     @Override
     public void before() {
         // 获取写锁，标记页面为脏页，保存修改前的数据
+        // 修改期间页面不会被后台写回，保证写回的页面中不含尚未记录日志的修改
         wLock.lock();
+        pg.startModify();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
@@ -56,6 +81,7 @@ public class DataItemImpl implements DataItem{
     public void unBefore() {
         // 恢复修改前的数据，释放写锁
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.endModify();
         wLock.unlock();
     }
 
@@ -63,6 +89,7 @@ public class DataItemImpl implements DataItem{
     public void after(long xid) {
         // 将dataitem的修改记录到日志中，释放写锁
         dm.logDataItem(xid, this);
+        pg.endModify();
         wLock.unlock();
     }
 
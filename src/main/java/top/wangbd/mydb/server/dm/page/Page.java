@@ -11,5 +11,17 @@ public interface Page {
     boolean isDirty();
     int getPageNumber();
     byte[] getData();
-}
 
+    /*** 开始修改页面数据，多个修改者可以同时修改同一页面的不同位置，修改期间页面不会被后台写回*/
+    void startModify();
+    /*** 结束修改页面数据*/
+    void endModify();
+    /*** 尝试阻止修改以获得页面数据的一致快照，页面正在被修改时立即返回false*/
+    boolean tryLockSnapshot();
+    /*** 快照完成，允许继续修改*/
+    void unlockSnapshot();
+    /*** 记录修改页面的日志的LSN，保留较大的值。写回页面前日志要先落盘到这个LSN*/
+    void setLsn(long lsn);
+    /*** 最后一条修改页面的日志的LSN，没有未落盘的修改时可能为0*/
+    long getLsn();
+}
@@ -1,17 +1,31 @@
 package top.wangbd.mydb.server.dm.page;
 import top.wangbd.mydb.server.dm.pageCache.PageCache;
+import top.wangbd.mydb.server.utils.Crc32c;
+import top.wangbd.mydb.server.utils.Parser;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 页面实现类
+ * <p>
+ * 每页最后4字节是页面校验和：前面所有字节的CRC32C，开启页面校验时在写回文件前计算，从文件读入时检查。
+ * 校验和为0表示写回时没有开启页面校验，读入时不检查。页面内容不使用这4个字节。
+ * </p>
  */
 public class PageImpl implements Page{
+    public static final int OF_CHECKSUM = PageCache.PAGE_SIZE - 4; // 页面校验和的位置
+
     private int pageNumber; // 页号
     private byte[] data; // 页数据
-    private boolean dirty; // 脏页标志
+    private volatile boolean dirty; // 脏页标志，后台刷脏线程也会读写
     private Lock lock; // 页锁
+    private ReadWriteLock modifyLock; // 修改者共享读锁，获取快照时独占写锁
+    private AtomicLong lsn = new AtomicLong(); // 最后一条修改页面的日志的LSN，只保存在内存中
 
     private PageCache pc; // 页面缓存引用
 
@@ -20,6 +34,7 @@ public class PageImpl implements Page{
         this.data = data;
         this.pc = pc;
         lock = new ReentrantLock();
+        modifyLock = new ReentrantReadWriteLock();
     }
 
     @Override
@@ -56,4 +71,50 @@ public class PageImpl implements Page{
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public void startModify() {
+        modifyLock.readLock().lock();
+    }
+
+    @Override
+    public void endModify() {
+        modifyLock.readLock().unlock();
+    }
+
+    @Override
+    public boolean tryLockSnapshot() {
+        return modifyLock.writeLock().tryLock();
+    }
+
+    @Override
+    public void unlockSnapshot() {
+        modifyLock.writeLock().unlock();
+    }
+
+    @Override
+    public void setLsn(long lsn) {
+        this.lsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    @Override
+    public long getLsn() {
+        return lsn.get();
+    }
+
+    /** 计算页面数据的校验和并写入页尾，写回文件前调用 */
+    public static void setChecksum(byte[] data) {
+        System.arraycopy(Parser.int2Byte(Crc32c.checksum(data, 0, OF_CHECKSUM)), 0, data, OF_CHECKSUM, 4);
+    }
+
+    /** 清除页尾的校验和，没有开启页面校验时写回文件前调用 */
+    public static void clearChecksum(byte[] data) {
+        Arrays.fill(data, OF_CHECKSUM, OF_CHECKSUM + 4, (byte)0);
+    }
+
+    /** 检查从文件读入的页面数据的校验和，没有记录校验和时视为正确 */
+    public static boolean checkChecksum(byte[] data) {
+        int stored = Parser.parseInt(Arrays.copyOfRange(data, OF_CHECKSUM, OF_CHECKSUM + 4));
+        return stored == 0 || stored == Crc32c.checksum(data, 0, OF_CHECKSUM);
+    }
 }
@@ -7,40 +7,110 @@ import top.wangbd.mydb.server.utils.Parser;
 import java.util.Arrays;
 
 /**
- * PageX管理普通页
+ * PageX管理普通页，采用槽页结构
  * 普通页结构
- * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * [FreeSpaceOffset] [SlotCount] [Slot0] [Slot1] ... [空闲空间] ... [Data] [PageChecksum]
+ * FreeSpaceOffset: 2字节 数据区的起始偏移，数据从页尾向前增长
+ * SlotCount:       2字节 槽的个数，槽目录从页头向后增长
+ * Slot:            4字节 [Offset 2字节] [Length 2字节]，Offset为0表示空闲槽
+ * <p>
+ * DataItem的uid中记录的是槽号而不是页内偏移，整理页面时数据可以移动，槽号保持不变。
+ * 空闲槽留下的数据空间是可回收空间，整理页面后变为连续的空闲空间，空闲槽可以被之后的插入复用。
+ * </p>
  */
 public class PageX {
     private static final short OF_FREE = 0; // 空闲空间偏移量（FSO）的起始位置
-    private static final short OF_DATA = 2; // 页面中数据部分的起始位置
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;  // 页面中可用于存储数据的最大空闲空间大小
+    private static final short OF_SLOT_COUNT = 2; // 槽个数的位置
+    private static final short OF_SLOTS = 4; // 槽目录的起始位置
+    public static final int SLOT_SIZE = 4; // 每个槽占用的字节数
+    private static final int DATA_END = PageImpl.OF_CHECKSUM; // 数据区的末尾，页尾4字节是页面校验和
+    public static final int MAX_FREE_SPACE = DATA_END - OF_SLOTS - SLOT_SIZE;  // 页面中一条数据的最大长度
 
 
     /*** 初始化普通页的原始数据*/
     public static byte[] initRaw() {
         // 创建一个新的字节数组，大小为页面大小（通常为8KB）。
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        // 将空闲空间偏移量（FSO）设置为数据部分的起始位置。
-        setFSO(raw, OF_DATA);
+        // 数据区为空，FSO指向数据区的末尾
+        setFSO(raw, (short)DATA_END);
         return raw;
     }
 
-    /*** 将 raw 插入 page 中，返回插入位置*/
+    /*** 下一次插入使用的槽号：第一个空闲槽，没有空闲槽时在槽目录末尾新增*/
+    public static short nextSlot(Page pg) {
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        for (int i = 0; i < count; i ++) {
+            if(getSlotOffset(raw, i) == 0) {
+                return (short)i;
+            }
+        }
+        return (short)count;
+    }
+
+    /*** 下一次插入长度为length的数据时，数据的页内偏移*/
+    public static short nextOffset(Page pg, int length) {
+        return (short)(getFSO(pg.getData()) - length);
+    }
+
+    /*** 将 raw 插入 page 中，返回使用的槽号。调用方需保证getFreeSpace(pg) >= raw.length*/
     public static short insert(Page pg, byte[] raw) {
         // raw 是一条DataItem的完整数据，包括有效位和长度
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
+        short slot = nextSlot(pg);
+        short offset = nextOffset(pg, raw.length);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
-        return offset;
+        setSlot(pg.getData(), slot, offset, (short)raw.length);
+        setFSO(pg.getData(), offset);
+        return slot;
+    }
+
+    /*** 释放槽，槽中数据占用的空间变为可回收空间。末尾的空闲槽从槽目录中移除*/
+    public static void free(Page pg, short slot) {
+        pg.setDirty(true);
+        byte[] raw = pg.getData();
+        setSlot(raw, slot, (short)0, (short)0);
+        int count = getSlotCount(raw);
+        while(count > 0 && getSlotOffset(raw, count - 1) == 0) {
+            count --;
+        }
+        setSlotCount(raw, (short)count);
+    }
+
+    /**
+     * 整理后的页面：所有数据紧密排列在页尾，FSO之前的可回收空间合并为连续的空闲空间，槽号不变。
+     * 返回新的页面数据，不修改pg
+     */
+    public static byte[] compacted(Page pg) {
+        byte[] raw = pg.getData();
+        byte[] image = new byte[PageCache.PAGE_SIZE];
+        int count = getSlotCount(raw);
+        int fso = DATA_END;
+        for (int i = 0; i < count; i ++) {
+            short offset = getSlotOffset(raw, i);
+            if(offset == 0) {
+                continue;
+            }
+            short length = getSlotLength(raw, i);
+            fso -= length;
+            System.arraycopy(raw, offset, image, fso, length);
+            setSlot(image, i, (short)fso, length);
+        }
+        setSlotCount(image, (short)count);
+        setFSO(image, (short)fso);
+        return image;
+    }
+
+    /*** 用整理后的页面数据替换页面内容，恢复时也用它重做整理*/
+    public static void applyCompacted(Page pg, byte[] image) {
+        pg.setDirty(true);
+        System.arraycopy(image, 0, pg.getData(), 0, PageCache.PAGE_SIZE);
     }
 
     /*** 设置新空闲位置的偏移 到 这一页的前两个字节
      * FSO：Free Space Offset*/
     private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, 2);
     }
 
     /*** 获取 page 的 FSO*/
@@ -50,23 +120,87 @@ public class PageX {
 
     /*** 根据这一页的前两个字节 获得 空闲位置的偏移*/
     private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+        return Parser.parseShort(Arrays.copyOfRange(raw, OF_FREE, OF_FREE+2));
+    }
+
+    private static int getSlotCount(byte[] raw) {
+        return Parser.parseShort(Arrays.copyOfRange(raw, OF_SLOT_COUNT, OF_SLOT_COUNT+2));
     }
 
-    /*** 获取页面的空闲空间大小*/
+    private static void setSlotCount(byte[] raw, short count) {
+        System.arraycopy(Parser.short2Byte(count), 0, raw, OF_SLOT_COUNT, 2);
+    }
+
+    private static short getSlotOffset(byte[] raw, int slot) {
+        int pos = OF_SLOTS + slot * SLOT_SIZE;
+        return Parser.parseShort(Arrays.copyOfRange(raw, pos, pos+2));
+    }
+
+    private static short getSlotLength(byte[] raw, int slot) {
+        int pos = OF_SLOTS + slot * SLOT_SIZE + 2;
+        return Parser.parseShort(Arrays.copyOfRange(raw, pos, pos+2));
+    }
+
+    /*** 设置槽的偏移和长度，槽号超出槽目录时扩展槽目录，中间的槽为空闲槽*/
+    private static void setSlot(byte[] raw, int slot, short offset, short length) {
+        int count = getSlotCount(raw);
+        if(slot >= count) {
+            Arrays.fill(raw, OF_SLOTS + count * SLOT_SIZE, OF_SLOTS + (slot + 1) * SLOT_SIZE, (byte)0);
+            setSlotCount(raw, (short)(slot + 1));
+        }
+        int pos = OF_SLOTS + slot * SLOT_SIZE;
+        System.arraycopy(Parser.short2Byte(offset), 0, raw, pos, 2);
+        System.arraycopy(Parser.short2Byte(length), 0, raw, pos+2, 2);
+    }
+
+    /*** 槽中数据的页内偏移，槽不存在或为空闲槽时返回0*/
+    public static short getSlotOffset(Page pg, short slot) {
+        byte[] raw = pg.getData();
+        if(slot < 0 || slot >= getSlotCount(raw)) {
+            return 0;
+        }
+        return getSlotOffset(raw, slot);
+    }
+
+    /*** 页面可以直接插入的最大数据长度，需要新增槽时扣除槽占用的空间*/
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        int free = getFSO(raw) - OF_SLOTS - count * SLOT_SIZE;
+        if(nextSlot(pg) == count) {
+            free -= SLOT_SIZE;
+        }
+        return Math.max(free, 0);
+    }
+
+    /*** 空闲槽留下的、整理页面后可以回收的空间*/
+    public static int getReclaimableSpace(Page pg) {
+        byte[] raw = pg.getData();
+        int count = getSlotCount(raw);
+        int used = 0;
+        for (int i = 0; i < count; i ++) {
+            if(getSlotOffset(raw, i) != 0) {
+                used += getSlotLength(raw, i);
+            }
+        }
+        return DATA_END - getFSO(raw) - used;
+    }
+
+    /*** 整理页面后可以插入的最大数据长度，页面索引按这个值登记*/
+    public static int getAvailableSpace(Page pg) {
+        return getFreeSpace(pg) + getReclaimableSpace(pg);
     }
 
-    /*** 将 raw 插入 page 中的 offset 位置，并将 pg 的 offset 设置为较大的 offset
+    /*** 将 raw 插入 page 中的 offset 位置并设置槽，FSO取较小的偏移
      * 用于在数据库崩溃后重新打开时，恢复例程直接插入数据使用。*/
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    public static void recoverInsert(Page pg, byte[] raw, short slot, short offset) {
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        setSlot(pg.getData(), slot, offset, (short)raw.length);
 
         short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        if(rawFSO > offset) {
+            setFSO(pg.getData(), offset);
         }
     }
 
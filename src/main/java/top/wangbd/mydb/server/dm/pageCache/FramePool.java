@@ -0,0 +1,52 @@
+package top.wangbd.mydb.server.dm.pageCache;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 页帧池，缓存页面数据所用的 PAGE_SIZE 大小的字节数组
+ * <p>
+ * 页面被驱逐后其页帧归还到池中，下一次缓存未命中时直接复用，避免每次读页都分配新的 8K 数组。
+ * 页帧在第一次需要时创建，总数不超过缓存容量，创建后长期存活，不再产生新生代垃圾。
+ * 页帧仍然是堆内的数组，页面缓存占用的堆空间不会因此减少，只是减少了分配和回收的次数。
+ * </p>
+ */
+public class FramePool {
+    private ConcurrentLinkedDeque<byte[]> free;
+    private AtomicInteger allocated;  // 已经创建的页帧数
+    private int capacity;             // 池中最多保留的页帧数
+
+    public FramePool(int capacity) {
+        this.capacity = capacity;
+        this.free = new ConcurrentLinkedDeque<>();
+        this.allocated = new AtomicInteger(0);
+    }
+
+    /** 取出一个空闲页帧，池中没有空闲页帧时新建一个。页帧中可能残留旧数据，调用方需要整页覆盖 */
+    public byte[] acquire() {
+        byte[] frame = free.pollFirst();
+        if(frame != null) {
+            return frame;
+        }
+        allocated.incrementAndGet();
+        return new byte[PageCache.PAGE_SIZE];
+    }
+
+    /** 归还页帧，调用方之后不能再访问该页帧 */
+    public void recycle(byte[] frame) {
+        if(frame.length != PageCache.PAGE_SIZE) {
+            return;
+        }
+        if(allocated.get() > capacity) {
+            // 超出容量时创建的页帧直接丢弃，交给GC回收
+            allocated.decrementAndGet();
+            return;
+        }
+        free.offerFirst(frame);
+    }
+
+    /** 已创建的页帧数 */
+    public int allocated() {
+        return allocated.get();
+    }
+}
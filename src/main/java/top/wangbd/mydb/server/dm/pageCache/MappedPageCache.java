@@ -0,0 +1,113 @@
+package top.wangbd.mydb.server.dm.pageCache;
+
+import top.wangbd.mydb.server.utils.Panic;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于内存映射的页面缓存
+ * <p>
+ * 数据库文件按 SEGMENT_SIZE 分段，用 FileChannel.map 映射到内存，页面的读写直接在映射区上完成，
+ * 不经过 FileChannel 的 read/write，也不需要 fileLock，页面在内存中的驻留由操作系统管理。
+ * 页面缓存的引用计数和驱逐逻辑与 PageCacheImpl 相同。
+ * </p>
+ * <p>
+ * 映射新分段会把文件扩展到分段边界，因此文件末尾可能有尚未分配的全零页，
+ * 打开时与预分配的页面一样从文件末尾向前跳过，得到实际的页数。
+ * </p>
+ */
+public class MappedPageCache extends PageCacheImpl {
+    static final long SEGMENT_SIZE = 1L << 26; // 每个映射分段64M
+
+    private List<MappedByteBuffer> segments;
+    private Lock mapLock; // 映射新分段时加锁
+
+    MappedPageCache(RandomAccessFile file, FileChannel fileChannel, int maxResource, String policy, int partitions) {
+        super(file, fileChannel, maxResource, policy, partitions);
+        this.segments = new CopyOnWriteArrayList<>();
+        this.mapLock = new ReentrantLock();
+        long length = 0;
+        try {
+            length = file.length();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(length > 0) {
+            ensureMapped(length - 1);
+        }
+    }
+
+    /** 确保文件offset处所在的分段已经映射，映射时会把文件扩展到分段边界 */
+    private void ensureMapped(long offset) {
+        int index = (int)(offset / SEGMENT_SIZE);
+        if(index < segments.size()) {
+            return;
+        }
+        mapLock.lock();
+        try {
+            while(segments.size() <= index) {
+                long start = segments.size() * SEGMENT_SIZE;
+                segments.add(fc.map(FileChannel.MapMode.READ_WRITE, start, SEGMENT_SIZE));
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    /** 返回offset所在分段的一个独立视图，position指向offset */
+    private ByteBuffer slice(long offset) {
+        ensureMapped(offset);
+        ByteBuffer buf = segments.get((int)(offset / SEGMENT_SIZE)).duplicate();
+        buf.position((int)(offset % SEGMENT_SIZE));
+        return buf;
+    }
+
+    @Override
+    protected int readPage(long offset, byte[] frame) {
+        slice(offset).get(frame);
+        return frame.length;
+    }
+
+    @Override
+    protected void writePage(long offset, byte[] data) {
+        slice(offset).put(data);
+    }
+
+    /** 映射的分段已经是全零，扩展时只需要映射到新的分段 */
+    @Override
+    protected void extendFile(long from, long to) {
+        ensureMapped(to - 1);
+    }
+
+    @Override
+    protected void forceFile() {
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * 映射中的文件不能缩短，截断时把size之后已分配的页面清零，打开时会被当作未分配的页面
+     */
+    @Override
+    protected void truncateFile(long size) {
+        if(size > 0) {
+            ensureMapped(size - 1);
+        }
+        byte[] zero = new byte[PAGE_SIZE];
+        long end = pageOffset(pageNumbers.get() + 1);
+        for (long offset = size; offset < end; offset += PAGE_SIZE) {
+            writePage(offset, zero);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package top.wangbd.mydb.server.dm.pageCache;
 
 import top.wangbd.mydb.common.Error;
+import top.wangbd.mydb.server.common.CacheStats;
 import top.wangbd.mydb.server.dm.page.Page;
 import top.wangbd.mydb.server.utils.Panic;
 
@@ -8,12 +9,15 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.function.LongConsumer;
 
 /**
  * 页面缓存接口
  */
 public interface PageCache {
     public static final int PAGE_SIZE = 1 << 13; // 页面大小为8K
+    public static final int READ_AHEAD_PAGES = 8; // 每次预读的页数
     /*** 创建一个新的数据页*/
     int newPage(byte[] initData);
     /*** 根据页号获取页面*/
@@ -30,9 +34,33 @@ public interface PageCache {
     int getPageNumber();
     /*** //将指定页面强制刷新到磁盘*/
     void flushPage(Page pg);
+    /*** 按页号顺序写回缓存中的所有脏页，整批只强制刷盘一次
+     * 返回因正在被修改而未能写回的脏页数*/
+    int flushDirtyPages();
+    /*** 把已经写入文件的页面强制刷盘，包括驱逐时写回和新建时写入的页面*/
+    void sync();
+    /*** 异步预读从pgno开始的count个页面到缓存中，用于即将进行的顺序读取*/
+    void readAhead(int pgno, int count);
+    /*** 每个分区的命中、未命中和驱逐统计*/
+    List<CacheStats> partitionStats();
+    /*** 页面缓存的监控指标*/
+    PageCacheMetrics metrics();
+    /*** 驻留在缓存中的页号，越热的页面越靠前*/
+    List<Integer> hottestPages();
+    /*** 把页面读入缓存但不引用它，页面留在缓存中直到被驱逐；所有页面都被引用时放弃*/
+    void prefetchPage(int pgno);
+    /*** 页面当前被引用的次数，用于判断除调用方之外是否还有人在使用该页面*/
+    int getReferenceCount(Page pg);
+    /** 设置写回页面前刷日志的方法，参数是页面的LSN，保证修改页面的日志先于页面落盘 */
+    void setLogFlusher(LongConsumer flusher);
 
     /** 创建一个页面缓存实例，并创建数据库文件*/
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, new PageCacheConfig(memory));
+    }
+
+    /** 按指定配置创建一个页面缓存实例，并创建数据库文件*/
+    public static PageCacheImpl create(String path, PageCacheConfig config) {
         // 创建数据库文件，注意db文件是在构建PageCacheImpl的时候创建（实际相差不大，因为PageCacheImpl在DataManager中创建）
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
@@ -55,11 +83,37 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return newPageCache(path, raf, fc, config);
+    }
+
+    /** 根据配置选择页面缓存的实现，默认为PageCacheImpl，也可以是内存映射或分段存储的实现*/
+    static PageCacheImpl newPageCache(String path, RandomAccessFile raf, FileChannel fc, PageCacheConfig config) {
+        // 先按long做除法，内存超过2G时不会溢出
+        int maxResource = (int)Math.min(config.memory / PAGE_SIZE, Integer.MAX_VALUE);
+        PageCacheImpl pc;
+        if(config.segmentSize > 0) {
+            if(config.mmap) {
+                Panic.panic(Error.InvalidSegmentException);
+            }
+            pc = new SegmentedPageCache(path, raf, fc, maxResource, config.policy, config.partitions,
+                    config.segmentSize, config.segmentDirs);
+        } else if(config.mmap) {
+            pc = new MappedPageCache(raf, fc, maxResource, config.policy, config.partitions);
+        } else {
+            pc = new PageCacheImpl(raf, fc, maxResource, config.policy, config.partitions);
+        }
+        pc.pageChecksum = config.pageChecksum;
+        pc.skipPreallocatedPages();
+        return pc;
     }
 
     /** 创建一个页面缓存实例，并打开已有的数据库文件*/
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, new PageCacheConfig(memory));
+    }
+
+    /** 按指定配置创建一个页面缓存实例，并打开已有的数据库文件*/
+    public static PageCacheImpl open(String path, PageCacheConfig config) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -76,6 +130,6 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
             Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return newPageCache(path, raf, fc, config);
     }
 }
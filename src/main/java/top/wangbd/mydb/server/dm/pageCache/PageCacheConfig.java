@@ -0,0 +1,22 @@
+package top.wangbd.mydb.server.dm.pageCache;
+
+import top.wangbd.mydb.server.common.AbstractCache;
+import top.wangbd.mydb.server.common.ReplacementPolicy;
+
+/**
+ * 页面缓存的配置项，由启动参数决定
+ */
+public class PageCacheConfig {
+    public long memory;                              // 页面缓存可使用的内存大小，单位为字节
+    public String policy = ReplacementPolicy.LRU;    // 页面置换策略，lru 或 2q
+    public boolean mmap = false;                     // 是否使用内存映射的页面缓存 MappedPageCache
+    public int partitions = AbstractCache.DEFAULT_SEGMENTS; // 页面缓存的分区数，按页号哈希选择分区
+    public long segmentSize = 0;                     // 单个数据文件的大小，超过后切分到新的段文件，0表示不分段
+    public String[] segmentDirs = new String[0];     // 段文件所在的目录，轮流使用，为空时与数据库文件放在一起
+    public boolean warmUp = false;                   // 关闭时保存缓存中的页号，打开时在后台预热
+    public boolean pageChecksum = false;             // 写回页面时计算CRC32C校验和，读入时检查
+
+    public PageCacheConfig(long memory) {
+        this.memory = memory;
+    }
+}
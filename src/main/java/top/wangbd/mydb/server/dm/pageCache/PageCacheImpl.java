@@ -2,6 +2,8 @@ package top.wangbd.mydb.server.dm.pageCache;
 
 import top.wangbd.mydb.common.Error;
 import top.wangbd.mydb.server.common.AbstractCache;
+import top.wangbd.mydb.server.common.CacheStats;
+import top.wangbd.mydb.server.common.ReplacementPolicy;
 import top.wangbd.mydb.server.dm.page.Page;
 import top.wangbd.mydb.server.dm.page.PageImpl;
 import top.wangbd.mydb.server.utils.Panic;
@@ -10,24 +12,63 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private static final int MEM_MIN_LIM = 10; // 最小内存限制，单位为页
+    private static final int SEQ_TRIGGER = 2; // 连续顺序访问多少次之后开始预读
+    private static final int READ_AHEAD_THREADS = 2; // 预读线程数
+    private static final int READ_AHEAD_QUEUE = 64; // 排队的预读请求数上限，超过时丢弃新请求
+    static final int EXTENT_PAGES = 64; // 每次预分配的页数，文件按512K扩展
+    private static final int FLUSH_BATCH = 32; // 写回脏页时每批最多钉住的页数
     public static final String DB_SUFFIX = ".db"; // 数据库文件后缀
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    RandomAccessFile file;
+    FileChannel fc;
 
-    private AtomicInteger pageNumbers;
+    AtomicInteger pageNumbers;
+    volatile int extentEnd;  // 文件中已经预分配的页数，页号不超过它的新页不需要扩展文件
+    private Lock extentLock; // 扩展文件时加锁
+    private FramePool[] frames;  // 缓存页面使用的页帧，每个分区一个页帧池
+    private int flushBatch;      // 写回脏页时每批钉住的页数，不超过缓存容量的1/8
+
+    private PageCacheMetrics metrics; // 监控指标
+    private volatile LongConsumer logFlusher = lsn -> {}; // 写回页面前把日志刷到页面的LSN
+    boolean pageChecksum;    // 写回页面时计算页面校验和，读入时检查
+
+    private ThreadPoolExecutor readAheadPool; // 异步预读线程
+    private Lock raLock;   // 保护以下顺序访问检测和预读窗口的状态
+    private int lastPgno;  // 上一次访问的页号
+    private int seqRun;    // 连续顺序访问的次数
+    private int raStart;   // 最近一次预读的范围 [raStart, raEnd)
+    private int raEnd;
 
 
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+        this(file, fileChannel, maxResource, ReplacementPolicy.LRU);
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, String policy) {
+        this(file, fileChannel, maxResource, policy, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * 页面缓存按页号哈希分为 partitions 个分区，每个分区有独立的锁、置换策略和页帧池，
+     * 容量上限由所有分区共享
+     */
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, String policy, int partitions) {
+        super(maxResource, policy, partitions);
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -39,58 +80,293 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int)(length / PAGE_SIZE));
+        this.extentEnd = pageNumbers.get();
+        this.extentLock = new ReentrantLock();
+        this.frames = new FramePool[segmentCount()];
+        for (int i = 0; i < frames.length; i ++) {
+            frames[i] = new FramePool(maxResource / frames.length + 1);
+        }
+        this.flushBatch = Math.max(1, Math.min(FLUSH_BATCH, maxResource / 8));
+        this.raLock = new ReentrantLock();
+        this.metrics = new PageCacheMetrics(this);
+        metrics.register();
+        this.readAheadPool = new ThreadPoolExecutor(READ_AHEAD_THREADS, READ_AHEAD_THREADS,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(READ_AHEAD_QUEUE), r -> {
+                    Thread t = new Thread(r, "page-read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.DiscardPolicy());
     }
 
-    private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
+    /** 页面在数据库文件中的偏移，按long计算，文件超过2G时不会溢出 */
+    static long pageOffset(int pgno) {
+        return (long)(pgno-1) * PAGE_SIZE;
     }
 
     /**
      * 将页面数据写回到文件中
      */
     private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
-        fileLock.lock();
+        // 页面仍在缓存中，其他线程可能同时修改它，在副本上设置校验和，保证校验和与写入的数据一致。
+        // 复制之后再读LSN，副本中的修改对应的日志都会先落盘
+        byte[] copy = Arrays.copyOf(pg.getData(), PAGE_SIZE);
+        logFlusher.accept(pg.getLsn());
+        write(pageOffset(pg.getPageNumber()), copy);
+        force();
+    }
+
+    /** 读取一页并记录字节数和耗时，实际的读取由readPage完成 */
+    private int read(long offset, byte[] frame) {
+        long start = System.nanoTime();
+        int n = readPage(offset, frame);
+        metrics.recordRead(n, System.nanoTime() - start);
+        return n;
+    }
+
+    /** 写入一页并记录字节数和耗时，写入前设置页尾的校验和。data会被修改，不能是其他线程正在读写的页面数据 */
+    private void write(long offset, byte[] data) {
+        // 不开启页面校验时把校验和清零，以后开启校验时不会按过期的校验和检查这一页
+        if(pageChecksum) {
+            PageImpl.setChecksum(data);
+        } else {
+            PageImpl.clearChecksum(data);
+        }
+        long start = System.nanoTime();
+        writePage(offset, data);
+        metrics.recordWrite(data.length, System.nanoTime() - start);
+    }
+
+    /** 刷盘并记录耗时 */
+    private void force() {
+        long start = System.nanoTime();
+        forceFile();
+        metrics.recordFsync(System.nanoTime() - start);
+    }
+
+    /**
+     * 从文件的offset处读取一页数据到frame中，返回实际读到的字节数（文件末尾之后的部分读不到）
+     */
+    protected int readPage(long offset, byte[] frame) {
+        return readFully(fc, offset, frame);
+    }
+
+    /**
+     * 将一页数据写到文件的offset处
+     */
+    protected void writePage(long offset, byte[] data) {
+        writeFully(fc, offset, data);
+    }
+
+    /**
+     * 从通道的offset处读满frame，返回实际读到的字节数。
+     * 使用带位置的读，不依赖也不修改通道的共享位置，多个线程的读写可以并行
+     */
+    static int readFully(FileChannel ch, long offset, byte[] frame) {
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        try {
+            while(buf.hasRemaining()) {
+                if(ch.read(buf, offset + buf.position()) <= 0) {
+                    break;
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        return buf.position();
+    }
+
+    /**
+     * 把data完整写到通道的offset处，同样使用带位置的写
+     */
+    static void writeFully(FileChannel ch, long offset, byte[] data) {
+        //用 wrap() 将页面数据包装成 ByteBuffer,然后通过 FileChannel.write() 写入文件
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        try {
+            while(buf.hasRemaining()) {
+                ch.write(buf, offset + buf.position());
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将已写入的页面数据强制刷到磁盘
+     */
+    protected void forceFile() {
         try {
-            //用 wrap() 将页面数据包装成 ByteBuffer,然后通过 FileChannel.write() 写入文件
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
         }
     }
 
+    /**
+     * 把数据库文件截断为size字节
+     */
+    protected void truncateFile(long size) {
+        try {
+            file.setLength(size);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+
+    /**
+     * 把 [from, to) 字节填零，预分配文件空间
+     */
+    protected void extendFile(long from, long to) {
+        writeFully(fc, from, new byte[(int)(to - from)]);
+    }
+
+    /**
+     * 为页号pgno预分配时，预分配区的结束页号，按EXTENT_PAGES对齐
+     */
+    protected int extentEnd(int pgno) {
+        return (pgno + EXTENT_PAGES - 1) / EXTENT_PAGES * EXTENT_PAGES;
+    }
 
+    /**
+     * 新建的页面立刻写入文件，但不强制刷盘：崩溃后丢失的新页会在恢复时按日志重做，
+     * 由后台刷脏线程或关闭时统一刷盘。
+     * 页号超出预分配区时先扩展文件：一次写入整个区的全零页并刷盘一次，之后区内的新页只需要写入页面本身
+     */
     @Override
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);  // 新建的页面需要立刻写回
+        if(pgno > extentEnd) {
+            extend(pgno);
+        }
+        write(pageOffset(pgno), initData);
         return pgno;
     }
 
+    /** 把文件扩展到包含pgno的预分配区的末尾，并发扩展时只有一个线程实际执行 */
+    private void extend(int pgno) {
+        extentLock.lock();
+        try {
+            if(pgno <= extentEnd) {
+                return;
+            }
+            int end = extentEnd(pgno);
+            long from = pageOffset(extentEnd + 1), to = pageOffset(end + 1);
+            long start = System.nanoTime();
+            extendFile(from, to);
+            metrics.recordWrite((int)(to - from), System.nanoTime() - start);
+            force();
+            extentEnd = end;
+        } finally {
+            extentLock.unlock();
+        }
+    }
+
+    /**
+     * 打开时调用：文件末尾可能有预分配但还没有使用的全零页，跳过它们得到实际的页数。
+     * 已分配的页面都不会是全零（普通页的FSO不为0，第一页有随机校验码）
+     */
+    void skipPreallocatedPages() {
+        int pages = pageNumbers.get();
+        byte[] frame = new byte[PAGE_SIZE];
+        while(pages > 0) {
+            int n = readPage(pageOffset(pages), frame);
+            if(!isZero(frame, n)) {
+                break;
+            }
+            pages --;
+        }
+        pageNumbers.set(pages);
+    }
+
+    private static boolean isZero(byte[] frame, int length) {
+        for (int i = 0; i < length; i ++) {
+            if(frame[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * 获取指定页号的页面，读取到缓存中
      */
     @Override
     public Page getPage(int pgno) throws Exception {
+        detectSequential(pgno);
         // 通过调用 AbstractCache 的 get 方法，从缓存或数据源（文件系统）获取页面
         return get((long)pgno);
     }
 
+    /**
+     * 检测顺序访问：连续访问相邻的页号达到SEQ_TRIGGER次后，预读之后的READ_AHEAD_PAGES页，
+     * 访问到预读窗口的后半段时继续向后预读。其他线程正在检测时直接跳过，不阻塞读取
+     */
+    private void detectSequential(int pgno) {
+        if(!raLock.tryLock()) {
+            return;
+        }
+        try {
+            if(pgno == lastPgno + 1) {
+                seqRun ++;
+            } else if(pgno != lastPgno) {
+                seqRun = 0;
+            }
+            lastPgno = pgno;
+            if(seqRun >= SEQ_TRIGGER && pgno + READ_AHEAD_PAGES / 2 >= raEnd) {
+                scheduleReadAhead(pgno + 1, pgno + 1 + READ_AHEAD_PAGES);
+            }
+        } finally {
+            raLock.unlock();
+        }
+    }
+
+    @Override
+    public void readAhead(int pgno, int count) {
+        raLock.lock();
+        try {
+            scheduleReadAhead(pgno, pgno + count);
+        } finally {
+            raLock.unlock();
+        }
+    }
+
+    /**
+     * 异步读取页号在 [from, to) 内的页面，与上一次预读重叠的部分不再重复读取。调用方需持有raLock
+     */
+    private void scheduleReadAhead(int from, int to) {
+        if(from >= raStart && from < raEnd) {
+            from = raEnd;
+        } else {
+            raStart = from;
+        }
+        to = Math.min(to, pageNumbers.get() + 1);
+        if(from >= to) {
+            return;
+        }
+        raEnd = to;
+        final int start = from, end = to;
+        readAheadPool.execute(() -> {
+            for (int i = start; i < end && !readAheadPool.isShutdown(); i ++) {
+                prefetch(i);
+            }
+        });
+    }
+
     /**
      * 关闭页面缓存并释放相关资源
      */
     @Override
     public void close() {
+        readAheadPool.shutdown();
+        try {
+            readAheadPool.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
         super.close();
+        force();
+        metrics.unregister();
         try {
             fc.close();
             file.close();
@@ -113,16 +389,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
-        fileLock.lock();
+        extentLock.lock();
         try {
-            file.setLength(size);
-        } catch (IOException e) {
-            Panic.panic(e);
+            truncateFile(pageOffset(maxPgno + 1));
+            pageNumbers.set(maxPgno);
+            extentEnd = maxPgno;
         } finally {
-            fileLock.unlock();
+            extentLock.unlock();
         }
-        pageNumbers.set(maxPgno);
     }
 
     @Override
@@ -135,6 +409,112 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         flush(pg);
     }
 
+    /**
+     * 写回所有脏页：按页号顺序每次钉住一小批脏页防止被驱逐，在快照锁下复制页面数据并清除脏标志，
+     * 把副本写入文件，最后只调用一次force。同时钉住的页数有上限，写回期间前台仍然可以驱逐其他页面。
+     * 正在被修改的页面跳过，留给下一轮
+     */
+    @Override
+    public int flushDirtyPages() {
+        List<Long> keys = keysIf(Page::isDirty);
+        Collections.sort(keys);
+        byte[] snapshot = new byte[PAGE_SIZE];
+        int skipped = 0;
+        boolean written = false;
+        for (int i = 0; i < keys.size(); i += flushBatch) {
+            List<Page> pages = pinIf(keys.subList(i, Math.min(i + flushBatch, keys.size())), Page::isDirty);
+            for (Page pg : pages) {
+                try {
+                    if(!pg.tryLockSnapshot()) {
+                        skipped ++;
+                        continue;
+                    }
+                    long lsn;
+                    try {
+                        pg.setDirty(false);
+                        System.arraycopy(pg.getData(), 0, snapshot, 0, PAGE_SIZE);
+                        lsn = pg.getLsn();
+                    } finally {
+                        pg.unlockSnapshot();
+                    }
+                    // 先让修改这一页的日志落盘，再写回页面
+                    logFlusher.accept(lsn);
+                    write(pageOffset(pg.getPageNumber()), snapshot);
+                    written = true;
+                } finally {
+                    release(pg);
+                }
+            }
+        }
+        if(written) {
+            force();
+        }
+        return skipped;
+    }
+
+    @Override
+    public void sync() {
+        force();
+    }
+
+    @Override
+    public List<CacheStats> partitionStats() {
+        return segmentStats();
+    }
+
+    @Override
+    public PageCacheMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public List<Integer> hottestPages() {
+        List<Integer> pages = new ArrayList<>();
+        for (long key : hottestKeys()) {
+            pages.add((int)key);
+        }
+        return pages;
+    }
+
+    @Override
+    public void prefetchPage(int pgno) {
+        prefetch(pgno);
+    }
+
+    @Override
+    public int getReferenceCount(Page pg) {
+        return referenceCount(pg.getPageNumber());
+    }
+
+    @Override
+    public void setLogFlusher(LongConsumer flusher) {
+        this.logFlusher = flusher;
+    }
+
+    long hits() {
+        return hitCount();
+    }
+
+    long misses() {
+        return missCount();
+    }
+
+    int capacityPages() {
+        return capacity();
+    }
+
+    long pinWaits() {
+        return pinWaitCount();
+    }
+
+    long cacheFulls() {
+        return cacheFullCount();
+    }
+
+    int dirtyPageCount() {
+        return countIf(Page::isDirty);
+    }
+
     /**
      * 根据pageNumber从数据库文件中读取页数据，并包裹成Page
      */
@@ -142,24 +522,28 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
         long offset = PageCacheImpl.pageOffset(pgno);
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
+        byte[] frame = frames[segmentIndex(key)].acquire();
+        int read = read(offset, frame);
+        // 复用的页帧中残留着旧页面的数据，文件末尾之后的部分需要清零
+        Arrays.fill(frame, read, PAGE_SIZE, (byte)0);
+        if(pageChecksum && !PageImpl.checkChecksum(frame)) {
+            frames[segmentIndex(key)].recycle(frame);
+            throw Error.BadPageChecksumException;
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
+        return new PageImpl(pgno, frame, this);
     }
 
+    /**
+     * 页面被驱逐：脏页写回文件（不强制刷盘，由后台刷脏线程统一刷盘），并将页帧归还到页帧池。
+     * 驱逐时不持有段锁，等待日志刷盘和写页面不会阻塞同一段上的其他访问
+     */
     @Override
     protected void releaseForCache(Page pg) {
         if(pg.isDirty()) {
-            flush(pg);
+            logFlusher.accept(pg.getLsn());
+            write(pageOffset(pg.getPageNumber()), pg.getData());
             pg.setDirty(false);
         }
-
+        frames[segmentIndex(pg.getPageNumber())].recycle(pg.getData());
     }
 }
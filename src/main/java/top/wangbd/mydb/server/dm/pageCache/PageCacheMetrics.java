@@ -0,0 +1,205 @@
+package top.wangbd.mydb.server.dm.pageCache;
+
+import top.wangbd.mydb.server.common.CacheStats;
+import top.wangbd.mydb.server.common.LatencyHistogram;
+import top.wangbd.mydb.server.utils.Panic;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 页面缓存的监控指标
+ * <p>
+ * 命中、驱逐、等待等计数来自 AbstractCache，文件读写和刷盘的字节数与耗时由 PageCacheImpl 记录。
+ * 页面缓存创建时注册为 MBean，关闭时注销；show stats 命令输出同样的内容。
+ * </p>
+ */
+public class PageCacheMetrics implements PageCacheMetricsMXBean {
+    private static final AtomicInteger NEXT_ID = new AtomicInteger(0);
+
+    private PageCacheImpl pc;
+    private ObjectName name;
+
+    private LongAdder readBytes = new LongAdder();
+    private LongAdder writeBytes = new LongAdder();
+    private LatencyHistogram readLatency = new LatencyHistogram();
+    private LatencyHistogram writeLatency = new LatencyHistogram();
+    private LatencyHistogram fsyncLatency = new LatencyHistogram();
+
+    PageCacheMetrics(PageCacheImpl pc) {
+        this.pc = pc;
+    }
+
+    /** 注册到平台的 MBeanServer */
+    void register() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            name = new ObjectName("top.wangbd.mydb:type=PageCache,id=" + NEXT_ID.incrementAndGet());
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /** 从 MBeanServer 注销 */
+    void unregister() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            Panic.panic(e);
+        }
+    }
+
+    ObjectName name() {
+        return name;
+    }
+
+    void recordRead(int bytes, long nanos) {
+        readBytes.add(bytes);
+        readLatency.record(nanos);
+    }
+
+    void recordWrite(int bytes, long nanos) {
+        writeBytes.add(bytes);
+        writeLatency.record(nanos);
+    }
+
+    void recordFsync(long nanos) {
+        fsyncLatency.record(nanos);
+    }
+
+    @Override
+    public long getHits() {
+        return pc.hits();
+    }
+
+    @Override
+    public long getMisses() {
+        return pc.misses();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = getHits(), total = hits + getMisses();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        long sum = 0;
+        for (CacheStats stats : pc.partitionStats()) {
+            sum += stats.evictions;
+        }
+        return sum;
+    }
+
+    @Override
+    public int getResidentPages() {
+        int sum = 0;
+        for (CacheStats stats : pc.partitionStats()) {
+            sum += stats.resident;
+        }
+        return sum;
+    }
+
+    @Override
+    public int getCapacityPages() {
+        return pc.capacityPages();
+    }
+
+    @Override
+    public int getDirtyPages() {
+        return pc.dirtyPageCount();
+    }
+
+    @Override
+    public long getPinWaits() {
+        return pc.pinWaits();
+    }
+
+    @Override
+    public long getCacheFullCount() {
+        return pc.cacheFulls();
+    }
+
+    @Override
+    public long getReadCount() {
+        return readLatency.count();
+    }
+
+    @Override
+    public long getReadBytes() {
+        return readBytes.sum();
+    }
+
+    @Override
+    public double getReadLatencyMeanMicros() {
+        return readLatency.meanMicros();
+    }
+
+    @Override
+    public long getReadLatencyP99Micros() {
+        return readLatency.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getWriteCount() {
+        return writeLatency.count();
+    }
+
+    @Override
+    public long getWriteBytes() {
+        return writeBytes.sum();
+    }
+
+    @Override
+    public double getWriteLatencyMeanMicros() {
+        return writeLatency.meanMicros();
+    }
+
+    @Override
+    public long getWriteLatencyP99Micros() {
+        return writeLatency.percentileMicros(0.99);
+    }
+
+    @Override
+    public long getFsyncCount() {
+        return fsyncLatency.count();
+    }
+
+    @Override
+    public double getFsyncLatencyMeanMicros() {
+        return fsyncLatency.meanMicros();
+    }
+
+    @Override
+    public long getFsyncLatencyP99Micros() {
+        return fsyncLatency.percentileMicros(0.99);
+    }
+
+    /** 以文本形式输出所有指标，每行一项，最后是每个分区的统计 */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("hits: %d, misses: %d, hit ratio: %.4f%n", getHits(), getMisses(), getHitRatio()));
+        sb.append(String.format("resident pages: %d / %d, dirty pages: %d, evictions: %d%n",
+                getResidentPages(), getCapacityPages(), getDirtyPages(), getEvictions()));
+        sb.append(String.format("pin waits: %d, cache full: %d%n", getPinWaits(), getCacheFullCount()));
+        sb.append(String.format("reads: %d, %d bytes, mean %.1fus, p99 <%dus%n",
+                getReadCount(), getReadBytes(), getReadLatencyMeanMicros(), getReadLatencyP99Micros()));
+        sb.append(String.format("writes: %d, %d bytes, mean %.1fus, p99 <%dus%n",
+                getWriteCount(), getWriteBytes(), getWriteLatencyMeanMicros(), getWriteLatencyP99Micros()));
+        sb.append(String.format("fsyncs: %d, mean %.1fus, p99 <%dus%n",
+                getFsyncCount(), getFsyncLatencyMeanMicros(), getFsyncLatencyP99Micros()));
+        List<CacheStats> partitions = pc.partitionStats();
+        for (CacheStats stats : partitions) {
+            sb.append(String.format("partition %d: resident %d, hits %d, misses %d, evictions %d%n",
+                    stats.segment, stats.resident, stats.hits, stats.misses, stats.evictions));
+        }
+        return sb.toString();
+    }
+}
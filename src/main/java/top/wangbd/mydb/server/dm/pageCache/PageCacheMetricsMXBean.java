@@ -0,0 +1,28 @@
+package top.wangbd.mydb.server.dm.pageCache;
+
+/**
+ * 页面缓存的JMX监控接口，名称为 top.wangbd.mydb:type=PageCache,id=N
+ */
+public interface PageCacheMetricsMXBean {
+    long getHits();
+    long getMisses();
+    double getHitRatio();
+    long getEvictions();
+    int getResidentPages();
+    int getCapacityPages();
+    int getDirtyPages();
+    long getPinWaits();
+    long getCacheFullCount();
+
+    long getReadCount();
+    long getReadBytes();
+    double getReadLatencyMeanMicros();
+    long getReadLatencyP99Micros();
+    long getWriteCount();
+    long getWriteBytes();
+    double getWriteLatencyMeanMicros();
+    long getWriteLatencyP99Micros();
+    long getFsyncCount();
+    double getFsyncLatencyMeanMicros();
+    long getFsyncLatencyP99Micros();
+}
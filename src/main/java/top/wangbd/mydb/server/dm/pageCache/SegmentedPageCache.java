@@ -0,0 +1,201 @@
+package top.wangbd.mydb.server.dm.pageCache;
+
+import top.wangbd.mydb.common.Error;
+import top.wangbd.mydb.server.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 分段存储的页面缓存
+ * <p>
+ * 数据库文件按 segmentSize 切分为多个文件：第0段就是 xxx.db，第k段为 xxx.k.db。
+ * 第k段（k>=1）放在 segmentDirs[(k-1) % segmentDirs.length] 中，没有配置目录时与 xxx.db 放在一起，
+ * 因此可以把数据分布到不同的磁盘上。段文件在第一次写入其中的页面时创建，前面缺少的段会一起创建，
+ * 所以段文件总是连续的；打开时从第1段开始依次查找，直到某一段不存在。
+ * </p>
+ * <p>
+ * segmentSize 是 PAGE_SIZE 的整数倍，页面不会跨段。每次打开都需要使用相同的 segmentSize 和目录。
+ * </p>
+ */
+public class SegmentedPageCache extends PageCacheImpl {
+    private long segmentSize;
+    private String name;            // 数据库文件名（不含目录和后缀）
+    private String[] dirs;          // 第1段及之后的段文件所在的目录
+
+    private List<RandomAccessFile> files;   // 第k个元素是第k段文件，第0段即数据库文件
+    private List<FileChannel> channels;
+    private Lock segmentLock;               // 创建或删除段文件时加锁
+
+    SegmentedPageCache(String path, RandomAccessFile file, FileChannel fileChannel, int maxResource,
+                       String policy, int partitions, long segmentSize, String[] segmentDirs) {
+        super(file, fileChannel, maxResource, policy, partitions);
+        if(segmentSize < PAGE_SIZE || segmentSize % PAGE_SIZE != 0) {
+            Panic.panic(Error.InvalidSegmentException);
+        }
+        File db = new File(path + DB_SUFFIX);
+        this.segmentSize = segmentSize;
+        this.name = db.getName().substring(0, db.getName().length() - DB_SUFFIX.length());
+        if(segmentDirs == null || segmentDirs.length == 0) {
+            String parent = db.getAbsoluteFile().getParent();
+            segmentDirs = new String[] { parent };
+        }
+        this.dirs = segmentDirs;
+        this.files = new CopyOnWriteArrayList<>();
+        this.channels = new CopyOnWriteArrayList<>();
+        this.segmentLock = new ReentrantLock();
+        files.add(file);
+        channels.add(fileChannel);
+
+        // 依次打开已有的段文件
+        while(segmentFile(channels.size()).exists()) {
+            openSegment(channels.size());
+        }
+        long lastLength = 0;
+        try {
+            for (int k = 0; k < files.size(); k ++) {
+                long length = files.get(k).length();
+                if(length > segmentSize) {
+                    Panic.panic(Error.BadDataSegmentException);
+                }
+                lastLength = length;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        long pages = (files.size() - 1) * (segmentSize / PAGE_SIZE) + lastLength / PAGE_SIZE;
+        pageNumbers.set((int)pages);
+        extentEnd = (int)pages;
+    }
+
+    /** 第k段的段文件 */
+    private File segmentFile(int k) {
+        return new File(dirs[(k - 1) % dirs.length], name + "." + k + DB_SUFFIX);
+    }
+
+    /** 打开（不存在时创建）第k段文件，调用方保证前k段都已打开 */
+    private void openSegment(int k) {
+        File f = segmentFile(k);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            files.add(raf);
+            channels.add(raf.getChannel());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /** 返回第k段的通道，create为false且该段还不存在时返回null */
+    private FileChannel channel(int k, boolean create) {
+        if(k < channels.size()) {
+            return channels.get(k);
+        }
+        if(!create) {
+            return null;
+        }
+        segmentLock.lock();
+        try {
+            while(channels.size() <= k) {
+                openSegment(channels.size());
+            }
+            return channels.get(k);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    @Override
+    protected int readPage(long offset, byte[] frame) {
+        FileChannel ch = channel((int)(offset / segmentSize), false);
+        if(ch == null) {
+            return 0;
+        }
+        return readFully(ch, offset % segmentSize, frame);
+    }
+
+    @Override
+    protected void writePage(long offset, byte[] data) {
+        FileChannel ch = channel((int)(offset / segmentSize), true);
+        writeFully(ch, offset % segmentSize, data);
+    }
+
+    @Override
+    protected void extendFile(long from, long to) {
+        // 按段拆分，每段写一次
+        while(from < to) {
+            long end = Math.min(to, (from / segmentSize + 1) * segmentSize);
+            FileChannel ch = channel((int)(from / segmentSize), true);
+            writeFully(ch, from % segmentSize, new byte[(int)(end - from)]);
+            from = end;
+        }
+    }
+
+    /** 预分配区不跨段，避免一次创建多个段文件 */
+    @Override
+    protected int extentEnd(int pgno) {
+        int segmentPages = (int)(segmentSize / PAGE_SIZE);
+        int segmentEnd = ((pgno - 1) / segmentPages + 1) * segmentPages;
+        return Math.min(super.extentEnd(pgno), segmentEnd);
+    }
+
+    @Override
+    protected void forceFile() {
+        try {
+            for (FileChannel ch : channels) {
+                ch.force(false);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 截断到size字节：删除size之后的段文件，再截断size所在的段
+     */
+    @Override
+    protected void truncateFile(long size) {
+        int last = (int)(size / segmentSize);
+        long remain = size % segmentSize;
+        if(remain == 0 && last > 0) {
+            // size恰好在段的边界上，第last段整段删除
+            last --;
+            remain = segmentSize;
+        }
+        segmentLock.lock();
+        try {
+            while(channels.size() > last + 1) {
+                int k = channels.size() - 1;
+                channels.remove(k).close();
+                files.remove(k).close();
+                if(!segmentFile(k).delete()) {
+                    Panic.panic(Error.BadDataSegmentException);
+                }
+            }
+            channel(last, true);
+            files.get(last).setLength(remain);
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        try {
+            for (int k = 1; k < files.size(); k ++) {
+                channels.get(k).close();
+                files.get(k).close();
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package top.wangbd.mydb.server.dm.pageIndex;
+
+import top.wangbd.mydb.server.utils.Panic;
+import top.wangbd.mydb.server.utils.Parser;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 空闲空间表，记录每一页的空闲空间大小，持久化在 xxx.fsm 文件中
+ * 格式：[PageCount]4 [FreeSpace]2 * PageCount，第i个FreeSpace对应页号i+1
+ * <p>
+ * 打开数据库时直接用它填充 PageIndex，只需读取表中没有记录的页面（上次保存之后新建的页面），
+ * 不再扫描整个数据库文件。表在内存中随插入实时更新，在检查点和关闭时保存，
+ * 崩溃后表中的值可能偏大，插入时发现页面空间不足会按实际值修正（见 DataManagerImpl.insert）。
+ * </p>
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+    public static final String FSM_TMP_SUFFIX = ".fsm_tmp";
+
+    private String path;
+    private short[] space;  // space[pgno-1]为页面的空闲空间
+    private int pageCount;  // 表中记录的最大页号
+    private Lock lock;
+
+    /** 打开空闲空间表，文件不存在时为空表 */
+    public static FreeSpaceMap open(String path) {
+        new File(path+FSM_TMP_SUFFIX).delete();
+        FreeSpaceMap fsm = new FreeSpaceMap(path);
+        File f = new File(path+FSM_SUFFIX);
+        if(!f.exists()) {
+            return fsm;
+        }
+        byte[] buf = null;
+        try {
+            buf = Files.readAllBytes(f.toPath());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if(buf.length < 4) {
+            return fsm;
+        }
+        int count = Parser.parseInt(Arrays.copyOfRange(buf, 0, 4));
+        count = Math.min(count, (buf.length - 4) / 2);
+        fsm.space = new short[Math.max(count, 16)];
+        for (int i = 0; i < count; i ++) {
+            fsm.space[i] = Parser.parseShort(Arrays.copyOfRange(buf, 4 + i*2, 6 + i*2));
+        }
+        fsm.pageCount = count;
+        return fsm;
+    }
+
+    private FreeSpaceMap(String path) {
+        this.path = path;
+        this.space = new short[16];
+        this.lock = new ReentrantLock();
+    }
+
+    /** 表中记录的最大页号 */
+    public int pageCount() {
+        lock.lock();
+        try {
+            return pageCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 页面的空闲空间，表中没有记录时为0 */
+    public int get(int pgno) {
+        lock.lock();
+        try {
+            return pgno <= pageCount ? space[pgno-1] : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 记录页面的空闲空间 */
+    public void set(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            if(pgno > space.length) {
+                space = Arrays.copyOf(space, Math.max(pgno, space.length * 2));
+            }
+            space[pgno-1] = (short)freeSpace;
+            pageCount = Math.max(pageCount, pgno);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 丢弃页号大于maxPgno的记录，用于数据库文件被截断之后 */
+    public void truncate(int maxPgno) {
+        lock.lock();
+        try {
+            if(pageCount > maxPgno) {
+                Arrays.fill(space, maxPgno, pageCount, (short)0);
+                pageCount = maxPgno;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** 保存到文件，先写临时文件再重命名 */
+    public void save() {
+        byte[] buf;
+        lock.lock();
+        try {
+            buf = new byte[4 + pageCount * 2];
+            System.arraycopy(Parser.int2Byte(pageCount), 0, buf, 0, 4);
+            for (int i = 0; i < pageCount; i ++) {
+                System.arraycopy(Parser.short2Byte(space[i]), 0, buf, 4 + i*2, 2);
+            }
+        } finally {
+            lock.unlock();
+        }
+        File tmp = new File(path+FSM_TMP_SUFFIX);
+        try(FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(buf);
+            out.flush();
+            // 重命名前先落盘，崩溃后不会留下内容不完整的空闲空间表
+            out.getFD().sync();
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path+FSM_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -2,56 +2,169 @@ package top.wangbd.mydb.server.dm.pageIndex;
 
 import top.wangbd.mydb.server.dm.pageCache.PageCache;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * 页面索引，按空闲空间把页面分到 INTERVALS_NO+1 个区间中，用于插入时快速选择有足够空间的页面
+ * <p>
+ * 每个区间再分为 STRIPES 个并发双端队列，线程按线程号选择自己的队列：
+ * 放回页面时放到自己队列的队首，选择页面时先在自己的队列中找，找不到再去其他线程的队列中取。
+ * 这样同一个线程会连续填充同一个页面，并发的插入线程各自填充不同的页面，互不争抢，也不需要全局锁。
+ * 选择和放回都只涉及固定数量的队列，与页面数无关。
+ * </p>
+ * <p>
+ * indexed 记录每个页面在索引中的当前登记项。更新页面的空闲空间时登记一个新项，旧项留在队列中成为过期项，
+ * 选择时从indexed中原子地移除登记项才算选中，因此一个页面同时只会被一个插入者选中。
+ * 过期项在选择时遇到就删除；过期项的数量超过当前登记项时把所有队列清理一遍，队列的总长度不会无限增长。
+ * </p>
+ */
 public class PageIndex {
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
     private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    // 每个区间的队列数，必须是2的幂
+    private static final int STRIPES = 8;
+    // 最后一个区间中每个队列最多跳过的空间不够的页面数
+    private static final int SCAN_LIMIT = 16;
+    // 过期项少于这个数时不清理
+    private static final int PURGE_MIN = 64;
 
-    private Lock lock;
-    private List<List<PageInfo>> lists;
+    private ConcurrentLinkedDeque<PageInfo>[][] lists;
+    private ConcurrentHashMap<Integer, PageInfo> indexed; // 页号 -> 当前登记项，被选中的页面不在其中
+    private FreeSpaceMap fsm; // 同步记录每一页最新的空闲空间，用于持久化
+    private AtomicInteger stale;       // 上次清理后产生的过期项数
+    private AtomicBoolean purging;     // 是否有线程正在清理过期项
 
-    public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new ArrayList<>(INTERVALS_NO + 1);
+    public PageIndex(FreeSpaceMap fsm) {
+        this.fsm = fsm;
+        indexed = new ConcurrentHashMap<>();
+        stale = new AtomicInteger(0);
+        purging = new AtomicBoolean(false);
+        @SuppressWarnings("unchecked")
+        ConcurrentLinkedDeque<PageInfo>[][] ls = (ConcurrentLinkedDeque<PageInfo>[][]) new ConcurrentLinkedDeque<?>[INTERVALS_NO + 1][STRIPES];
+        lists = ls;
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists.add(new ArrayList<>());
+            for (int j = 0; j < STRIPES; j ++) {
+                lists[i][j] = new ConcurrentLinkedDeque<>();
+            }
         }
     }
 
-    /*** 根据需要的空间大小, 选择合适的页返回*/
+    /** 当前线程使用的队列 */
+    private static int homeStripe() {
+        return (int)Thread.currentThread().getId() & (STRIPES - 1);
+    }
+
+    /**
+     * 根据需要的空间大小, 选择合适的页返回，被选中的页面从索引中移除，用完后需要重新add。
+     * 最后一个区间包含空闲空间超过 INTERVALS_NO*THRESHOLD 的所有页面，需要的空间落在这个区间时逐个比较页面的空闲空间，
+     * 空间不够的页面留在原处，每个队列最多跳过 SCAN_LIMIT 个
+     */
     public PageInfo select(int spaceSize) {
-        lock.lock();
-        try {
-            // 需要向上取整, 确保找到的页有足够的空间 比如如果需要1.5个THRESHOLD的空间, 那么就需要找至少2个THRESHOLD空间的页
-            int number = (spaceSize + THRESHOLD - 1) / THRESHOLD;
-            if (number > INTERVALS_NO) number = INTERVALS_NO;
-
-            while(number <= INTERVALS_NO) {
-                if(lists.get(number).size() == 0) {
-                    number ++;
-                    continue;
+        // 需要向上取整, 确保找到的页有足够的空间 比如如果需要1.5个THRESHOLD的空间, 那么就需要找至少2个THRESHOLD空间的页
+        int need = (spaceSize + THRESHOLD - 1) / THRESHOLD;
+        if (need > INTERVALS_NO) need = INTERVALS_NO;
+
+        int home = homeStripe();
+        for (int s = 0; s < STRIPES; s ++) {
+            int stripe = (home + s) & (STRIPES - 1);
+            for (int number = need; number <= INTERVALS_NO; number ++) {
+                PageInfo pi = take(lists[number][stripe], spaceSize);
+                if(pi != null) {
+                    return pi;
                 }
-                return lists.get(number).remove(0);
             }
-            return null;
-        } finally {
-            lock.unlock();
         }
+        return null;
+    }
+
+    /** 从队首开始找第一个空间足够的当前登记项并选中它，顺路删除过期项 */
+    private PageInfo take(ConcurrentLinkedDeque<PageInfo> list, int spaceSize) {
+        int skipped = 0;
+        Iterator<PageInfo> it = list.iterator();
+        while(it.hasNext()) {
+            PageInfo pi = it.next();
+            if(indexed.get(pi.pgno) != pi) {
+                it.remove();
+                continue;
+            }
+            // 只有最后一个区间里会有空间不够的页面
+            if(pi.freeSpace < spaceSize) {
+                if(++ skipped >= SCAN_LIMIT) {
+                    return null;
+                }
+                continue;
+            }
+            // 登记项可能刚被其他线程选中或更新，此时它已过期
+            it.remove();
+            if(indexed.remove(pi.pgno, pi)) {
+                return pi;
+            }
+        }
+        return null;
     }
 
     /*** 将有空闲空间的页加入到页面索引*/
     public void add(int pgno, int freeSpace) {
-        lock.lock();
+        fsm.set(pgno, freeSpace);
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        if(indexed.put(pgno, pi) != null) {
+            staled();
+        }
+        offer(pi);
+    }
+
+    /**
+     * 页面的空闲空间变化（如释放了槽）时更新索引。页面正被插入者选中时不在索引中，由插入者放回时登记
+     */
+    public void update(int pgno, int freeSpace) {
+        fsm.set(pgno, freeSpace);
+        PageInfo old = indexed.get(pgno);
+        if(old == null) {
+            return;
+        }
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        if(indexed.replace(pgno, old, pi)) {
+            offer(pi);
+            staled();
+        }
+    }
+
+    /** 产生了一个过期项，过期项比当前登记项多时清理所有队列，清理的开销平摊到每次更新上 */
+    private void staled() {
+        int n = stale.incrementAndGet();
+        if(n < PURGE_MIN || n < indexed.size() || !purging.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            int number = freeSpace / THRESHOLD;
-            lists.get(number).add(new PageInfo(pgno, freeSpace));
+            stale.set(0);
+            for (ConcurrentLinkedDeque<PageInfo>[] bucket : lists) {
+                for (ConcurrentLinkedDeque<PageInfo> list : bucket) {
+                    list.removeIf(pi -> indexed.get(pi.pgno) != pi);
+                }
+            }
         } finally {
-            lock.unlock();
+            purging.set(false);
         }
     }
+
+    /** 索引的队列中一共有多少项，包括过期项 */
+    int entryCount() {
+        int n = 0;
+        for (ConcurrentLinkedDeque<PageInfo>[] bucket : lists) {
+            for (ConcurrentLinkedDeque<PageInfo> list : bucket) {
+                n += list.size();
+            }
+        }
+        return n;
+    }
+
+    private void offer(PageInfo pi) {
+        int number = pi.freeSpace / THRESHOLD;
+        lists[number][homeStripe()].offerFirst(pi);
+    }
 }
@@ -57,12 +57,49 @@ public class BPlusTree {
             if(res.siblingUid == 0) {
                 break;
             } else {
+                // 范围跨越多个叶子节点，预读兄弟节点所在的页面
+                dm.readAhead(res.siblingUid);
                 leafUid = res.siblingUid;
             }
         }
         return uids;
     }
 
+    public class ScanRes {
+        public List<Long> uids;
+        public long nextKey;  // 下一批开始扫描的key
+        public boolean end;   // 已经扫描到最后一个键值对
+    }
+
+    /** 从leftKey开始按key的顺序扫描一批uid
+     *  至少返回limit个（不足时扫描到末尾），key相同的键值对放在同一批中，下一批从nextKey开始
+     * */
+    public ScanRes scan(long leftKey, int limit) throws Exception {
+        long leafUid = searchLeaf(rootUid(), leftKey);
+        ScanRes res = new ScanRes();
+        res.uids = new ArrayList<>();
+        long lastKey = 0;
+        while(true) {
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.LeafSearchRangeRes lr = leaf.leafSearchRange(leftKey, Long.MAX_VALUE);
+            leaf.release();
+            for (int i = 0; i < lr.uids.size(); i ++) {
+                long key = lr.keys.get(i);
+                if(res.uids.size() >= limit && key != lastKey) {
+                    res.nextKey = key;
+                    return res;
+                }
+                res.uids.add(lr.uids.get(i));
+                lastKey = key;
+            }
+            if(lr.siblingUid == 0) {
+                res.end = true;
+                return res;
+            }
+            leafUid = lr.siblingUid;
+        }
+    }
+
     class InsertRes {
         long newNode, newKey;
     }
@@ -79,6 +116,24 @@ public class BPlusTree {
         }
     }
 
+    /** 从B+树中删除(key, uid)键值对，返回是否找到
+     *  只从叶子节点中移除，不合并节点，空的叶子节点在查找时会被跳过
+     * */
+    public boolean delete(long key, long uid) throws Exception {
+        long leafUid = searchLeaf(rootUid(), key);
+        while(leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.LeafDeleteRes res = leaf.leafDelete(uid, key);
+            leaf.release();
+            if(res.deleted) {
+                return true;
+            }
+            // key相同的键值对可能延续到兄弟节点中
+            leafUid = res.siblingUid;
+        }
+        return false;
+    }
+
     public void close() {
         bootDataItem.release();
     }
@@ -91,6 +91,7 @@ public class Node {
 
     class LeafSearchRangeRes {
         List<Long> uids;
+        List<Long> keys; // 与uids一一对应的key
         long siblingUid;
     }
 
@@ -114,10 +115,12 @@ public class Node {
 
             // 寻找右边界，把处在左右边界的uid加入到列表
             List<Long> uids = new ArrayList<>();
+            List<Long> keys = new ArrayList<>();
             while(kth < noKeys) {
                 long ik = getRawKthKey(raw, kth);
                 if(ik <= rightKey) {
                     uids.add(getRawKthSon(raw, kth));
+                    keys.add(ik);
                     kth ++;
                 } else {
                     break;
@@ -130,6 +133,7 @@ public class Node {
             }
             LeafSearchRangeRes res = new LeafSearchRangeRes();
             res.uids = uids;
+            res.keys = keys;
             res.siblingUid = siblingUid;
             return res;
         } finally {
@@ -137,6 +141,42 @@ public class Node {
         }
     }
 
+    class LeafDeleteRes {
+        boolean deleted;
+        long siblingUid;
+    }
+
+    /** 在叶子节点中删除(uid, key)键值对
+     *  没有找到且节点中的key都不大于要删除的key时，返回兄弟节点UID，在兄弟节点中继续查找
+     * */
+    public LeafDeleteRes leafDelete(long uid, long key) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            for(int kth = 0; kth < noKeys; kth ++) {
+                long ik = getRawKthKey(raw, kth);
+                if(ik > key) {
+                    return res;
+                }
+                if(ik == key && getRawKthSon(raw, kth) == uid) {
+                    unshiftRawKth(raw, kth);
+                    setRawNoKeys(raw, noKeys-1);
+                    res.deleted = true;
+                    return res;
+                }
+            }
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        } finally {
+            if(res.deleted) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
     /** 创建一个新的空根节点的raw数据，此时既是根节点也是叶子节点 */
     static byte[] newNilRootRaw()  {
         SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
@@ -331,6 +371,11 @@ public class Node {
         }
     }
 
+    /** 将第k个Son和Key之后的内容整体向前移动8+8位（删除第k个键值对） */
+    static void unshiftRawKth(SubArray raw, int kth) {
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, raw.end-begin-(8*2));
+    }
 
     @Override
     public String toString() {
@@ -417,12 +417,19 @@ public class TokenParser {
         return update;
     }
 
-    /** 解析Show语句 */
-    private static Show parseShow(Tokenizer tokenizer) throws Exception {
+    /** 解析Show语句：show 列出所有表，show stats 输出页面缓存的监控指标 */
+    private static Object parseShow(Tokenizer tokenizer) throws Exception {
         String tmp = tokenizer.peek();
         if("".equals(tmp)) {
             return new Show();
         }
+        if("stats".equals(tmp)) {
+            tokenizer.pop();
+            if(!"".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            return new ShowStats();
+        }
         throw Error.InvalidCommandException;
     }
 
@@ -0,0 +1,5 @@
+package top.wangbd.mydb.server.parser.statement;
+
+public class ShowStats {
+
+}
@@ -53,6 +53,9 @@ public class Executor {
             byte[] res = tbm.abort(xid);
             xid = 0;
             return res;
+        } else if(ShowStats.class.isInstance(stat)) {
+            // 输出监控指标，不需要事务
+            return tbm.stats();
         } else {
             return execute2(stat);
         }
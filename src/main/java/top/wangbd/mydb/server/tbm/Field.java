@@ -69,6 +69,12 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    /** 从字段的BPlusTree索引中删除键值对 */
+    public void remove(Object key, long uid) throws Exception {
+        long uKey = value2Uid(key);
+        bt.delete(uKey, uid);
+    }
+
     /** 在字段的BPlusTree索引中搜索指定范围的uid列表
      *  输入参数为范围的左右边界值
      * */
@@ -76,6 +82,11 @@ public class Field {
         return bt.searchRange(left, right);
     }
 
+    /** 从key为from的键值对开始，按key的顺序扫描一批uid */
+    public BPlusTree.ScanRes scan(long from, int limit) throws Exception {
+        return bt.scan(from, limit);
+    }
+
     class ParseValueRes {
         Object v;
         int shift;
@@ -2,6 +2,7 @@ package top.wangbd.mydb.server.tbm;
 
 import com.google.common.primitives.Bytes;
 import top.wangbd.mydb.common.Error;
+import top.wangbd.mydb.server.im.BPlusTree;
 import top.wangbd.mydb.server.parser.statement.*;
 import top.wangbd.mydb.server.tm.TransactionManagerImpl;
 import top.wangbd.mydb.server.utils.Panic;
@@ -100,7 +101,7 @@ public class Table {
 
     /** 数据库更新操作
      *  mydb的更新只允许更新单个字段，且必须提供新的字段值
-     *  mydb的更新操作实际上是删除旧记录，插入新记录的过程
+     *  mydb的更新操作实际上是删除旧记录，插入新记录的过程，新记录批量插入
      * */
     public int update(long xid, Update update) throws Exception {
         // 解析where条件，获取符合条件的uid列表
@@ -118,7 +119,8 @@ public class Table {
         }
         // 将新的字段值转换成为对应类型的对象
         Object value = fd.string2Value(update.value);
-        int count = 0;
+        List<Map<String, Object>> entries = new ArrayList<>();
+        List<byte[]> raws = new ArrayList<>();
         for (Long uid : uids) {
             // 获取旧记录的二进制数据
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
@@ -130,21 +132,25 @@ public class Table {
             Map<String, Object> entry = parseEntry(raw);
             // 更新指定字段的值
             entry.put(fd.fieldName, value);
+            entries.add(entry);
             // 将更新后的记录重新转换成为二进制数据
-            raw = entry2Raw(entry);
-            // 插入新记录，获取新的uid
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-
-            count ++;
+            raws.add(entry2Raw(entry));
+        }
+        if(raws.isEmpty()) {
+            return 0;
+        }
 
+        // 批量插入新记录，获取新的uid
+        List<Long> uuids = ((TableManagerImpl)tbm).vm.insertBatch(xid, raws);
+        for (int i = 0; i < uuids.size(); i ++) {
             // 更新所有索引字段的索引数据
             for (Field field : fields) {
                 if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+                    field.insert(entries.get(i).get(field.fieldName), uuids.get(i));
                 }
             }
         }
-        return count;
+        return uuids.size();
     }
 
     /** 数据库查询操作
@@ -165,6 +171,26 @@ public class Table {
     }
 
 
+    /** 通过第一个索引字段，从key为from的记录开始扫描一批记录（包括已删除的旧版本）的uid，表没有索引字段时返回null */
+    BPlusTree.ScanRes scanUids(long from, int limit) throws Exception {
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                return field.scan(from, limit);
+            }
+        }
+        return null;
+    }
+
+    /** 从所有索引字段中删除一条记录的索引项，raw为记录的二进制数据 */
+    void removeIndex(long uid, byte[] raw) throws Exception {
+        Map<String, Object> entry = parseEntry(raw);
+        for (Field field : fields) {
+            if(field.isIndexed()) {
+                field.remove(entry.get(field.fieldName), uid);
+            }
+        }
+    }
+
     /** 将二进制数据解析为Table对象 */
     private Table parseSelf(byte[] raw) {
         int position = 0;
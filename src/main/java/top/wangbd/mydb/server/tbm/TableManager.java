@@ -11,6 +11,7 @@ public interface TableManager {
     byte[] abort(long xid);
 
     byte[] show(long xid);
+    byte[] stats();
     byte[] create(long xid, Create create) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
@@ -18,6 +19,9 @@ public interface TableManager {
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    /** 停止后台清理线程，必须在DataManager关闭之前调用 */
+    void close();
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
@@ -26,6 +30,8 @@ public interface TableManager {
 
     public static TableManager open(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter);
+        tbm.vacuum.start();
+        return tbm;
     }
 }
@@ -20,6 +20,7 @@ public class TableManagerImpl implements TableManager {
     private Map<String, Table> tableCache; // 记录所有的Table对象
     private Map<Long, List<Table>> xidTableCache; // 记录每个事务所涉及的Table对象
     private Lock lock;
+    Vacuum vacuum;
 
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -29,6 +30,7 @@ public class TableManagerImpl implements TableManager {
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
         loadTables();
+        vacuum = new Vacuum(this, vm, dm);
     }
 
 
@@ -79,6 +81,28 @@ public class TableManagerImpl implements TableManager {
         }
     }
 
+    /** 输出存储层的监控指标 */
+    @Override
+    public byte[] stats() {
+        return (dm.stats() + vacuum.stats()).getBytes();
+    }
+
+    /** 停止后台清理，之后不会再通过DataManager读写页面 */
+    @Override
+    public void close() {
+        vacuum.shutdown();
+    }
+
+    /** 当前所有表的列表，供后台清理使用 */
+    List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /** 创建一张新表 */
     @Override
     public byte[] create(long xid, Create create) throws Exception {
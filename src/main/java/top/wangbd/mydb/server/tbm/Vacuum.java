@@ -0,0 +1,181 @@
+package top.wangbd.mydb.server.tbm;
+
+import top.wangbd.mydb.common.Error;
+import top.wangbd.mydb.server.dm.DataManager;
+import top.wangbd.mydb.server.im.BPlusTree;
+import top.wangbd.mydb.server.utils.Panic;
+import top.wangbd.mydb.server.vm.VersionManager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 后台清理线程，回收对所有事务都不可见的旧版本
+ * <p>
+ * 每隔 VACUUM_INTERVAL 毫秒，对每张表沿第一个索引从上一轮停下的位置继续检查至多约 SCAN_LIMIT 条记录，
+ * 扫描到索引末尾后下一轮从头开始，每轮的工作量与表的大小无关。删除事务已提交且早于所有活跃事务和快照的版本、
+ * 以及插入事务已回滚的版本都是死版本。每检查 BATCH_SIZE 条记录暂停 BATCH_PAUSE 毫秒，避免占满磁盘和锁。
+ * </p>
+ * <p>
+ * 清理分两步：先从所有索引中删除死版本的索引项，此后新的查询不会再找到它；但删除索引项时已经在执行的事务
+ * 可能已经拿到了uid，槽号释放后会被复用，所以记下当时最新的活跃事务ID，等这些事务都结束后才释放槽，
+ * 空间回到页面索引。等待释放的uid只保存在内存中，崩溃后这部分空间不会被回收。
+ * </p>
+ */
+public class Vacuum implements Runnable {
+    static final long VACUUM_INTERVAL = 5000;  // 清理间隔，单位毫秒
+    static final int BATCH_SIZE = 64;          // 每批检查的记录数
+    static final long BATCH_PAUSE = 10;        // 每批之间的停顿，单位毫秒
+    static final int SCAN_LIMIT = 1024;        // 每轮每张表检查的记录数
+
+    private TableManagerImpl tbm;
+    private VersionManager vm;
+    private DataManager dm;
+    int scanLimit = SCAN_LIMIT;
+
+    // 每张表下一轮开始扫描的索引key，没有记录时从头开始
+    private Map<Table, Long> cursors = new HashMap<>();
+
+    // 已删除索引项、等待释放的uid，按删除索引项的先后排列
+    private ArrayDeque<Pending> pending = new ArrayDeque<>();
+
+    private AtomicLong scanned = new AtomicLong();
+    private AtomicLong removed = new AtomicLong();
+    private AtomicLong freed = new AtomicLong();
+
+    private Thread thread;
+    private volatile boolean stopped;
+
+    private static class Pending {
+        long tag;  // 删除索引项后最新的活跃事务ID
+        List<Long> uids;
+    }
+
+    Vacuum(TableManagerImpl tbm, VersionManager vm, DataManager dm) {
+        this.tbm = tbm;
+        this.vm = vm;
+        this.dm = dm;
+    }
+
+    /** 启动后台线程 */
+    void start() {
+        thread = new Thread(this, "vacuum");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** 停止后台线程，并等待正在进行的一批清理结束 */
+    void shutdown() {
+        stopped = true;
+        if(thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException ignored) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(!stopped) {
+            try {
+                Thread.sleep(VACUUM_INTERVAL);
+                runOnce();
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                // 页面校验失败说明数据文件已损坏，其他错误（如缓存已满）只放弃本轮，下一轮重试
+                if(e == Error.BadPageChecksumException) {
+                    Panic.panic(e);
+                }
+                System.err.println("vacuum failed, retry in next pass: " + e);
+            }
+        }
+    }
+
+    /** 做一轮清理：先释放可以释放的uid，再在每张表中检查一批记录，删除死版本的索引项 */
+    synchronized void runOnce() throws Exception {
+        freePending();
+        for (Table table : tbm.tables()) {
+            vacuumTable(table);
+        }
+    }
+
+    /**
+     * 释放删除索引项时的活跃事务都已结束的uid。中途失败时还没有释放的uid留在队列中，下一轮继续；
+     * 每个uid在释放前就移出队列，释放过的槽可能已被复用，不能再释放一次
+     */
+    private void freePending() throws Exception {
+        long horizon = vm.vacuumHorizon();
+        while(!pending.isEmpty() && pending.peekFirst().tag < horizon) {
+            Pending p = pending.peekFirst();
+            while(!p.uids.isEmpty()) {
+                long uid = p.uids.remove(p.uids.size() - 1);
+                freed.incrementAndGet();
+                dm.free(uid);
+            }
+            pending.pollFirst();
+        }
+    }
+
+    private void vacuumTable(Table table) throws Exception {
+        BPlusTree.ScanRes res = table.scanUids(cursors.getOrDefault(table, Long.MIN_VALUE), scanLimit);
+        if(res == null) {
+            return;
+        }
+        List<Long> uids = res.uids;
+        List<Long> dead = new ArrayList<>();
+        long horizon = 0;
+        try {
+            for (int i = 0; i < uids.size(); i ++) {
+                if(stopped) {
+                    break;
+                }
+                // 每批开始时重新计算horizon，horizon只会变大
+                if(i % BATCH_SIZE == 0) {
+                    if(i > 0) {
+                        Thread.sleep(BATCH_PAUSE);
+                    }
+                    horizon = vm.vacuumHorizon();
+                }
+                long uid = uids.get(i);
+                byte[] raw = vm.readDead(uid, horizon);
+                scanned.incrementAndGet();
+                if(raw == null) {
+                    continue;
+                }
+                table.removeIndex(uid, raw);
+                removed.incrementAndGet();
+                dead.add(uid);
+            }
+            if(stopped) {
+                // 没检查完的记录下一轮重新检查
+            } else if(res.end) {
+                cursors.remove(table);
+            } else {
+                cursors.put(table, res.nextKey);
+            }
+        } finally {
+            // 中途失败时已经删除索引项的uid同样要等待释放
+            if(!dead.isEmpty()) {
+                Pending p = new Pending();
+                p.tag = vm.newestActiveXid();
+                p.uids = dead;
+                pending.addLast(p);
+            }
+        }
+    }
+
+    /** 清理的统计信息 */
+    String stats() {
+        return String.format("vacuum: scanned %d, removed %d, freed %d, pending %d%n",
+                scanned.get(), removed.get(), freed.get(), removed.get() - freed.get());
+    }
+}
@@ -0,0 +1,93 @@
+package top.wangbd.mydb.server.utils;
+
+import java.lang.reflect.Constructor;
+import java.util.function.Supplier;
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C校验和工具类
+ * <p>
+ * JDK 9 及以上使用 java.util.zip.CRC32C，JIT会把它替换为CPU的CRC32C指令；
+ * 项目按 Java 8 编译，通过反射加载，JDK 8 上退回按字节查表的实现，结果相同。
+ * </p>
+ */
+public class Crc32c {
+    private static final int POLY = 0x82F63B78; // CRC32C（Castagnoli）多项式，按位反转
+
+    private static final Supplier<Checksum> FACTORY = factory();
+    // 每个线程复用一个Checksum对象，计算前reset
+    private static final ThreadLocal<Checksum> LOCAL = ThreadLocal.withInitial(FACTORY);
+
+    private static Supplier<Checksum> factory() {
+        try {
+            Constructor<? extends Checksum> c = Class.forName("java.util.zip.CRC32C")
+                    .asSubclass(Checksum.class).getConstructor();
+            c.newInstance();
+            return () -> {
+                try {
+                    return c.newInstance();
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        } catch (ReflectiveOperationException e) {
+            return TableCrc32c::new;
+        }
+    }
+
+    /** 新建一个CRC32C对象，用于分多次累加计算 */
+    public static Checksum create() {
+        return FACTORY.get();
+    }
+
+    /** 计算data的CRC32C */
+    public static int checksum(byte[] data) {
+        return checksum(data, 0, data.length);
+    }
+
+    /** 计算data中从off开始len个字节的CRC32C */
+    public static int checksum(byte[] data, int off, int len) {
+        Checksum c = LOCAL.get();
+        c.reset();
+        c.update(data, off, len);
+        return (int)c.getValue();
+    }
+
+    /** 没有 java.util.zip.CRC32C 时的实现，每次查表处理一个字节 */
+    public static class TableCrc32c implements Checksum {
+        private static final int[] TABLE = new int[256];
+        static {
+            for (int i = 0; i < 256; i ++) {
+                int crc = i;
+                for (int j = 0; j < 8; j ++) {
+                    crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+                }
+                TABLE[i] = crc;
+            }
+        }
+
+        private int crc = 0xFFFFFFFF;
+
+        @Override
+        public void update(int b) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+        }
+
+        @Override
+        public void update(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i ++) {
+                crc = (crc >>> 8) ^ TABLE[(crc ^ b[i]) & 0xFF];
+            }
+        }
+
+        @Override
+        public long getValue() {
+            return (~crc) & 0xFFFFFFFFL;
+        }
+
+        @Override
+        public void reset() {
+            crc = 0xFFFFFFFF;
+        }
+    }
+}
@@ -1,10 +1,10 @@
 package top.wangbd.mydb.server.utils;
 
 public class Types {
-    /** 将页号和页内偏移转换为全局唯一地址UID*/
-    public static long addressToUid(int pgno, short offset) {
+    /** 将页号和页内槽号转换为全局唯一地址UID*/
+    public static long addressToUid(int pgno, short slot) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = (long)slot;
         return u0 << 32 | u1;
     }
 }
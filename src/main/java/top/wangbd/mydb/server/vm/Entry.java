@@ -3,8 +3,12 @@ package top.wangbd.mydb.server.vm;
 import com.google.common.primitives.Bytes;
 import top.wangbd.mydb.server.common.SubArray;
 import top.wangbd.mydb.server.dm.dataItem.DataItem;
+import top.wangbd.mydb.server.utils.Panic;
 import top.wangbd.mydb.server.utils.Parser;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 
 /**
@@ -45,10 +49,13 @@ public class Entry {
         return Bytes.concat(xmin, xmax, data);
     }
 
-    /** 返回Entry的数据内容 */
+    /** 返回Entry的数据内容，超过一页的数据从溢出页中读取 */
     public byte[] data() {
         dataItem.rLock();
         try {
+            if(dataItem.isOverflow()) {
+                return readOverflow();
+            }
             SubArray sa = dataItem.data();
             byte[] data = new byte[sa.end - sa.start - OF_DATA];
             System.arraycopy(sa.raw, sa.start+OF_DATA, data, 0, data.length);
@@ -58,6 +65,24 @@ public class Entry {
         }
     }
 
+    /** 顺序读取溢出的数据，跳过XMIN和XMAX */
+    private byte[] readOverflow() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = ((VersionManagerImpl)vm).dm.openData(dataItem)) {
+            byte[] buf = new byte[4096];
+            int skip = OF_DATA;
+            int n;
+            while((n = in.read(buf)) != -1) {
+                int from = Math.min(skip, n);
+                skip -= from;
+                out.write(buf, from, n - from);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return out.toByteArray();
+    }
+
     /** 设置XMAX */
     public void setXmax(long xid) {
         dataItem.before();
@@ -1,9 +1,19 @@
 package top.wangbd.mydb.server.vm;
 
+import java.util.List;
+
 public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    /** 批量插入，返回的uid与data一一对应 */
+    List<Long> insertBatch(long xid, List<byte[]> data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
+    /** 版本对所有事务都不可见时返回它的数据，否则返回null，用于清理 */
+    byte[] readDead(long uid, long horizon) throws Exception;
+    /** 清理的边界：所有活跃事务的事务ID和快照中的最小值，删除事务早于它的版本对所有活跃事务都不可见 */
+    long vacuumHorizon();
+    /** 最新的活跃事务ID，没有活跃事务时为0 */
+    long newestActiveXid();
 
     long begin(int level);
     void commit(long xid) throws Exception;
@@ -7,7 +7,9 @@ import top.wangbd.mydb.server.tm.TransactionManager;
 import top.wangbd.mydb.server.tm.TransactionManagerImpl;
 import top.wangbd.mydb.server.utils.Panic;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -83,6 +85,23 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         return dm.insert(xid, raw);
     }
 
+    @Override
+    public List<Long> insertBatch(long xid, List<byte[]> data) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if(t.err != null) {
+            throw t.err;
+        }
+
+        List<byte[]> raws = new ArrayList<>(data.size());
+        for (byte[] d : data) {
+            raws.add(Entry.wrapEntryRaw(xid, d));
+        }
+        return dm.insertBatch(xid, raws);
+    }
+
     @Override
     public boolean delete(long xid, long uid) throws Exception {
         lock.lock();
@@ -145,6 +164,68 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         }
     }
 
+    @Override
+    public byte[] readDead(long uid, long horizon) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            } else {
+                throw e;
+            }
+        }
+
+        try {
+            if(Visibility.isDead(tm, horizon, entry)) {
+                return entry.data();
+            } else {
+                return null;
+            }
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Override
+    public long vacuumHorizon() {
+        lock.lock();
+        try {
+            long horizon = Long.MAX_VALUE;
+            for (Transaction t : activeTransaction.values()) {
+                if(t.xid == TransactionManagerImpl.SUPER_XID) {
+                    continue;
+                }
+                horizon = Math.min(horizon, t.xid);
+                if(t.snapshot != null) {
+                    for (long x : t.snapshot.keySet()) {
+                        if(x != TransactionManagerImpl.SUPER_XID) {
+                            horizon = Math.min(horizon, x);
+                        }
+                    }
+                }
+            }
+            return horizon;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long newestActiveXid() {
+        lock.lock();
+        try {
+            long newest = 0;
+            for (long xid : activeTransaction.keySet()) {
+                newest = Math.max(newest, xid);
+            }
+            return newest;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public long begin(int level) {
         lock.lock();
@@ -179,6 +260,8 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.unlock();
 
         lt.remove(xid);
+        // 事务的日志落盘后才标记为已提交，并发提交的事务共用一次force
+        dm.flushLog();
         tm.commit(xid);
     }
 
@@ -202,7 +285,6 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     protected Entry getForCache(long uid) throws Exception {
-        System.out.println("this is a entry getForCache");
         Entry entry = Entry.loadEntry(this, uid);
         if(entry == null) {
             throw Error.NullEntryException;
@@ -18,6 +18,20 @@ public class Visibility {
     }
 
 
+    /**
+     * 判断版本是否对所有事务都不可见，可以被清理：插入它的事务已回滚，
+     * 或者删除它的事务已提交，且事务早于horizon（所有活跃事务的事务ID和快照中的最小值）。
+     * 被自动回滚的事务在客户端abort之前仍是活跃事务，可能还在建立索引，所以回滚的版本也要早于horizon
+     */
+    public static boolean isDead(TransactionManager tm, long horizon, Entry e) {
+        long xmin = e.getXmin();
+        if(xmin < horizon && tm.isAborted(xmin)) {
+            return true;
+        }
+        long xmax = e.getXmax();
+        return xmax != 0 && xmax < horizon && tm.isCommitted(xmax);
+    }
+
     /** 判断版本是否可见 */
     public static boolean isVisible(TransactionManager tm, Transaction t, Entry e) {
         if(t.level == 0) {
@@ -0,0 +1,303 @@
+package top.wangbd.mydb.server.common;
+
+import org.junit.Test;
+import top.wangbd.mydb.common.Error;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AbstractCacheTest {
+
+    /** 记录加载和写回次数的测试缓存 */
+    static class CountingCache extends AbstractCache<Long> {
+        int loads = 0;
+        List<Long> evicted = new ArrayList<>();
+
+        CountingCache(int maxResource) {
+            super(maxResource);
+        }
+
+        CountingCache(int maxResource, int segments) {
+            super(maxResource, ReplacementPolicy.LRU, segments);
+        }
+
+        @Override
+        protected synchronized Long getForCache(long key) {
+            loads ++;
+            return key;
+        }
+
+        @Override
+        protected synchronized void releaseForCache(Long obj) {
+            evicted.add(obj);
+        }
+    }
+
+    @Test
+    public void testRetainUnpinned() throws Exception {
+        CountingCache cache = new CountingCache(4);
+        cache.get(1);
+        cache.release(1);
+        cache.get(1);
+        cache.release(1);
+        assertEquals(1, cache.loads);
+        assertTrue(cache.evicted.isEmpty());
+    }
+
+    @Test
+    public void testEvictOnlyUnpinned() throws Exception {
+        CountingCache cache = new CountingCache(3);
+        for(long i = 1; i <= 3; i ++) {
+            cache.get(i);
+        }
+        cache.release(2);
+        cache.get(4);
+        assertEquals(1, cache.evicted.size());
+        assertEquals(2L, (long)cache.evicted.get(0));
+
+        cache.release(1);
+        cache.get(5);
+        assertEquals(1L, (long)cache.evicted.get(1));
+    }
+
+    @Test
+    public void testConcurrentGetRelease() throws Exception {
+        CountingCache cache = new CountingCache(16);
+        int threads = 8;
+        Thread[] ts = new Thread[threads];
+        AtomicReference<Throwable> err = new AtomicReference<>();
+        for (int i = 0; i < threads; i ++) {
+            final int seed = i;
+            ts[i] = new Thread(() -> {
+                for (int j = 0; j < 20000; j ++) {
+                    long key = (seed * 31L + j) % 64;
+                    try {
+                        assertEquals(key, (long)cache.get(key));
+                    } catch (Throwable e) {
+                        err.compareAndSet(null, e);
+                        return;
+                    }
+                    cache.release(key);
+                }
+            });
+            ts[i].start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        assertNull(err.get());
+        // 每次加载的资源要么已被驱逐，要么仍驻留在缓存中
+        assertTrue(cache.loads - cache.evicted.size() <= 16);
+    }
+
+    @Test
+    public void testWaitForRelease() throws Exception {
+        CountingCache cache = new CountingCache(2);
+        cache.get(1);
+        cache.get(2);
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {}
+            cache.release(1);
+        });
+        t.start();
+        assertEquals(3L, (long)cache.get(3));
+        t.join();
+        assertEquals(1L, (long)cache.evicted.get(0));
+    }
+
+    @Test
+    public void testCacheFullWhenAllPinned() throws Exception {
+        CountingCache cache = new CountingCache(1);
+        cache.get(1);
+        try {
+            cache.get(2);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.CacheFullException, e);
+        }
+    }
+
+    @Test
+    public void testUnboundedDropsOnRelease() throws Exception {
+        CountingCache cache = new CountingCache(0);
+        cache.get(1);
+        cache.release(1);
+        assertEquals(1, cache.evicted.size());
+        cache.get(1);
+        assertEquals(2, cache.loads);
+    }
+
+    /** 加载较慢、可以指定加载失败的测试缓存 */
+    static class SlowCache extends AbstractCache<Long> {
+        AtomicInteger loads = new AtomicInteger(0);
+        Exception failWith;
+
+        SlowCache() {
+            super(0);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            Thread.sleep(100);
+            if(failWith != null) {
+                throw failWith;
+            }
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {}
+    }
+
+    @Test
+    public void testConcurrentMissLoadsOnce() throws Exception {
+        SlowCache cache = new SlowCache();
+        List<Thread> ts = new ArrayList<>();
+        AtomicReference<Throwable> err = new AtomicReference<>();
+        for (int i = 0; i < 4; i ++) {
+            Thread t = new Thread(() -> {
+                try {
+                    assertEquals(7L, (long)cache.get(7));
+                } catch (Throwable e) {
+                    err.compareAndSet(null, e);
+                }
+            });
+            ts.add(t);
+            t.start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        assertNull(err.get());
+        assertEquals(1, cache.loads.get());
+    }
+
+    @Test
+    public void testFailedLoadPassedToWaiters() throws Exception {
+        SlowCache cache = new SlowCache();
+        cache.failWith = new RuntimeException("load failed");
+        List<Thread> ts = new ArrayList<>();
+        List<Throwable> errs = new CopyOnWriteArrayList<>();
+        for (int i = 0; i < 4; i ++) {
+            Thread t = new Thread(() -> {
+                try {
+                    cache.get(7);
+                } catch (Throwable e) {
+                    errs.add(e);
+                }
+            });
+            ts.add(t);
+            t.start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        assertEquals(4, errs.size());
+        for (Throwable e : errs) {
+            assertSame(cache.failWith, e);
+        }
+    }
+
+    @Test
+    public void testSegmentStats() throws Exception {
+        CountingCache cache = new CountingCache(8, 3);
+        List<CacheStats> stats = cache.segmentStats();
+        assertEquals(4, stats.size());
+
+        for(long i = 1; i <= 12; i ++) {
+            cache.get(i);
+            cache.release(i);
+        }
+        cache.get(12);
+        cache.release(12);
+
+        long misses = 0, hits = 0, evictions = 0, resident = 0;
+        for (CacheStats s : cache.segmentStats()) {
+            misses += s.misses;
+            hits += s.hits;
+            evictions += s.evictions;
+            resident += s.resident;
+        }
+        assertEquals(12, misses);
+        assertEquals(1, hits);
+        assertEquals(4, evictions);
+        assertEquals(8, resident);
+        assertEquals(cache.evicted.size(), evictions);
+    }
+
+    /** 写回时阻塞在门闩上的测试缓存，记录加载时写回是否已经完成 */
+    static class BlockingWriteCache extends AbstractCache<Long> {
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch proceed = new CountDownLatch(1);
+        volatile boolean written = true;
+        volatile boolean loadedAfterWrite = true;
+
+        BlockingWriteCache() {
+            super(2, ReplacementPolicy.LRU, 1);
+        }
+
+        @Override
+        protected Long getForCache(long key) {
+            if(!written) {
+                loadedAfterWrite = false;
+            }
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            writing.countDown();
+            try {
+                proceed.await();
+            } catch (InterruptedException ignored) {}
+            written = true;
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testWriteBackOutsideSegmentLock() throws Exception {
+        BlockingWriteCache cache = new BlockingWriteCache();
+        cache.get(1);
+        cache.release(1);
+        cache.get(2);
+        cache.release(2);
+
+        // 驱逐1并阻塞在写回中
+        cache.written = false;
+        Thread evictor = new Thread(() -> {
+            try {
+                cache.get(3);
+            } catch (Exception ignored) {}
+        });
+        evictor.start();
+        assertTrue(cache.writing.await(1, TimeUnit.SECONDS));
+
+        // 写回期间同一段上的其他资源仍然可以访问
+        assertEquals(2L, (long)cache.get(2));
+        cache.release(2);
+
+        // 获取正在写回的资源需要等待写回完成
+        Thread reader = new Thread(() -> {
+            try {
+                cache.get(1);
+            } catch (Exception ignored) {}
+        });
+        reader.start();
+        Thread.sleep(50);
+        assertTrue(reader.isAlive());
+        cache.proceed.countDown();
+        evictor.join();
+        reader.join();
+        assertTrue(cache.loadedAfterWrite);
+    }
+}
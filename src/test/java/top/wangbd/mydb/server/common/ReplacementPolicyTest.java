@@ -0,0 +1,72 @@
+package top.wangbd.mydb.server.common;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest {
+
+    /** 用策略模拟一个容量为capacity的缓存，访问key，返回是否命中 */
+    private boolean touch(ReplacementPolicy policy, Set<Long> resident, int capacity, long key) {
+        if(resident.contains(key)) {
+            policy.pin(key);
+            policy.access(key);
+            policy.unpin(key);
+            return true;
+        }
+        if(resident.size() == capacity) {
+            Long victim = policy.evict();
+            assertNotNull(victim);
+            resident.remove(victim);
+        }
+        resident.add(key);
+        policy.admit(key);
+        policy.unpin(key);
+        return false;
+    }
+
+    /** 热点页面反复访问后，经过一次大范围扫描，再统计热点页面的命中数 */
+    private int hotHitsAfterScan(ReplacementPolicy policy) {
+        int capacity = 16;
+        Set<Long> resident = new HashSet<>();
+        for (int round = 0; round < 4; round ++) {
+            for (long hot = 1; hot <= 8; hot ++) {
+                touch(policy, resident, capacity, hot);
+            }
+            // 热点页面被淘汰进A1out后再次访问，进入Am
+            for (long cold = 1000 + round * 100; cold < 1000 + round * 100 + 12; cold ++) {
+                touch(policy, resident, capacity, cold);
+            }
+        }
+        for (long scan = 100000; scan < 100200; scan ++) {
+            touch(policy, resident, capacity, scan);
+        }
+        int hits = 0;
+        for (long hot = 1; hot <= 8; hot ++) {
+            if(touch(policy, resident, capacity, hot)) {
+                hits ++;
+            }
+        }
+        return hits;
+    }
+
+    @Test
+    public void testTwoQueueResistsScan() {
+        assertEquals(0, hotHitsAfterScan(ReplacementPolicy.create(ReplacementPolicy.LRU, 16)));
+        assertEquals(8, hotHitsAfterScan(ReplacementPolicy.create(ReplacementPolicy.TWO_QUEUE, 16)));
+    }
+
+    @Test
+    public void testPinnedNotEvicted() {
+        ReplacementPolicy policy = ReplacementPolicy.create(ReplacementPolicy.TWO_QUEUE, 4);
+        policy.admit(1);
+        policy.admit(2);
+        policy.unpin(2);
+        assertEquals(2L, (long)policy.evict());
+        assertNull(policy.evict());
+        assertFalse(policy.hasEvictable());
+    }
+}
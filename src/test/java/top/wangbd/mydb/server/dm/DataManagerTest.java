@@ -0,0 +1,465 @@
+package top.wangbd.mydb.server.dm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import top.wangbd.mydb.server.common.SubArray;
+import top.wangbd.mydb.server.dm.Logger.Logger;
+import top.wangbd.mydb.server.dm.dataItem.DataItem;
+import top.wangbd.mydb.server.dm.page.PageX;
+import top.wangbd.mydb.server.dm.pageCache.PageCache;
+import top.wangbd.mydb.server.dm.pageCache.PageCacheConfig;
+import top.wangbd.mydb.server.dm.pageIndex.FreeSpaceMap;
+import top.wangbd.mydb.server.tm.MockTransactionManager;
+import top.wangbd.mydb.server.tm.TransactionManager;
+import top.wangbd.mydb.server.tm.TransactionManagerImpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class DataManagerTest {
+    private File dir;
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("mydb-dm").toFile();
+        path = dir.getAbsolutePath() + File.separator + "dm";
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] record(int i) {
+        byte[] data = new byte[60 + i % 40];
+        Arrays.fill(data, (byte)i);
+        return data;
+    }
+
+    private static void assertRecord(DataManager dm, long uid, int i) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        SubArray sa = di.data();
+        assertArrayEquals(record(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+    }
+
+    @Test
+    public void testInsertReadWithSmallCache() throws Exception {
+        insertReadReopen(new PageCacheConfig(PageCache.PAGE_SIZE*10));
+    }
+
+    @Test
+    public void testMappedPageCache() throws Exception {
+        PageCacheConfig config = new PageCacheConfig(PageCache.PAGE_SIZE*10);
+        config.mmap = true;
+        insertReadReopen(config);
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm);
+        assertNull(Checkpoint.open(path).load());
+        for (int i = 0; i < 100; i ++) {
+            dm.insert(0, record(i));
+        }
+        // 没有正在进行的修改，所有脏页都能写回，检查点位置即当前日志末尾
+        assertTrue(dm.cleaner.checkpoint());
+        assertEquals(dm.logger.end(), Checkpoint.open(path).load().position);
+        dm.close();
+    }
+
+    @Test
+    public void testCheckpointSyncsEvictedPages() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*10, tm);
+        dm.cleaner.shutdown();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 1500; i ++) {
+            uids.add(dm.insert(0, record(i)));
+        }
+        dm.pc.flushDirtyPages();
+        Set<Long> dirty = new HashSet<>();
+        for (int i = 1500; i < 1700; i ++) {
+            uids.add(dm.insert(0, record(i)));
+            dirty.add(uids.get(i) >>> 32);
+        }
+        // 读取其他页面上的记录把脏页挤出缓存，被驱逐的脏页写入了文件但没有刷盘
+        for (int i = 0; i < 1500; i ++) {
+            if(!dirty.contains(uids.get(i) >>> 32)) {
+                assertRecord(dm, uids.get(i), i);
+            }
+        }
+        assertEquals(0, dm.pc.metrics().getDirtyPages());
+
+        // 没有脏页需要写回，检查点仍然要在丢弃日志之前刷盘
+        long before = dm.pc.metrics().getFsyncCount();
+        long[] atTruncate = {-1};
+        Logger logger = (Logger)Proxy.newProxyInstance(Logger.class.getClassLoader(), new Class<?>[]{Logger.class},
+                (proxy, method, args) -> {
+                    if(method.getName().equals("truncateBefore")) {
+                        atTruncate[0] = dm.pc.metrics().getFsyncCount();
+                    }
+                    return method.invoke(dm.logger, args);
+                });
+        PageCleaner cleaner = new PageCleaner(dm.pc, logger, dm.att, Checkpoint.open(path), dm.fsm);
+        assertTrue(cleaner.checkpoint());
+        assertTrue(atTruncate[0] > before);
+        dm.close();
+    }
+
+    @Test
+    public void testRecoverFromCheckpoint() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*16, tm);
+        List<Long> uids = new ArrayList<>();
+        long committed = tm.begin();
+        for (int i = 0; i < 1000; i ++) {
+            uids.add(dm.insert(committed, record(i)));
+        }
+        tm.commit(committed);
+        // 检查点时仍未提交的事务，它的日志不能被丢弃
+        long active = tm.begin();
+        long uncommitted = dm.insert(active, record(1000));
+        for (int i = 1001; i < 2000; i ++) {
+            uids.add(dm.insert(TransactionManagerImpl.SUPER_XID, record(i)));
+        }
+        assertTrue(dm.cleaner.checkpoint());
+        Checkpoint.State st = Checkpoint.open(path).load();
+        assertEquals(1, st.active.size());
+        assertTrue(st.recoverFrom() < st.position);
+
+        for (int i = 2000; i < 2500; i ++) {
+            uids.add(dm.insert(TransactionManagerImpl.SUPER_XID, record(i)));
+        }
+        // 日志落盘后不关闭，模拟崩溃，重新打开时从检查点开始恢复，撤销未提交事务在检查点之前的插入
+        dm.flushLog();
+        dm.cleaner.shutdown();
+        tm = TransactionManager.open(path);
+        dm = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*16, tm);
+        for (int i = 0; i < uids.size(); i ++) {
+            assertRecord(dm, uids.get(i), i < 1000 ? i : i + 1);
+        }
+        assertNull(dm.read(uncommitted));
+        assertTrue(tm.isAborted(active));
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        PageCacheConfig config = new PageCacheConfig(PageCache.PAGE_SIZE*20);
+        config.warmUp = true;
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, config, tm);
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 3000; i ++) {
+            uids.add(dm.insert(0, record(i)));
+        }
+        // 最后读取前面的一批记录，它们所在的页面是关闭时最热的页面
+        for (int i = 0; i < 300; i ++) {
+            assertRecord(dm, uids.get(i), i);
+        }
+        int first = (int)(uids.get(0) >>> 32);
+        dm.close();
+        List<Integer> saved = new CacheWarmer(path, null).load();
+        assertTrue(saved.contains(first));
+        assertTrue(saved.size() <= 20);
+
+        // 重新打开时使用更大的缓存，避免打开过程中的预读把预热的页面挤出去
+        config.memory = PageCache.PAGE_SIZE*40;
+        dm = (DataManagerImpl)DataManager.open(path, config, tm);
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!dm.pc.hottestPages().containsAll(saved) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(dm.pc.hottestPages().containsAll(saved));
+        dm.close();
+    }
+
+    @Test
+    public void testOpenWithFreeSpaceMap() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*10, tm);
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 3000; i ++) {
+            uids.add(dm.insert(0, record(i)));
+        }
+        dm.close();
+
+        // 空闲空间表记录了所有页面，打开时只读取第一页
+        DataManagerImpl dmi = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*10, tm);
+        assertEquals(1, dmi.pc.metrics().getReadCount());
+        for (int i = 3000; i < 3100; i ++) {
+            uids.add(dmi.insert(0, record(i)));
+        }
+        int pages = dmi.pc.getPageNumber();
+        dmi.close();
+
+        // 空闲空间表过时（值偏大）时，插入按页面实际的空闲空间修正
+        FreeSpaceMap fsm = FreeSpaceMap.open(path);
+        for (int i = 2; i <= pages; i ++) {
+            fsm.set(i, PageX.MAX_FREE_SPACE);
+        }
+        fsm.save();
+        dm = DataManager.open(path, PageCache.PAGE_SIZE*10, tm);
+        for (int i = 3100; i < 3600; i ++) {
+            uids.add(dm.insert(0, record(i)));
+        }
+        for (int i = 0; i < 3600; i ++) {
+            assertRecord(dm, uids.get(i), i);
+        }
+        dm.close();
+    }
+
+    @Test
+    public void testFreeCompactAndRecover() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*16, tm);
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 1000; i ++) {
+            uids.add(dm.insert(0, record(i)));
+        }
+        int pages = dm.pc.getPageNumber();
+        for (int i = 0; i < 1000; i += 2) {
+            dm.free(uids.get(i));
+            assertNull(dm.read(uids.get(i)));
+        }
+        // 整理页面后复用释放的空间，几乎不需要新的页面
+        for (int i = 1000; i < 1500; i ++) {
+            uids.add(dm.insert(0, record(i)));
+        }
+        assertTrue(dm.pc.getPageNumber() <= pages + 1);
+
+        // 日志落盘后不关闭，模拟崩溃，重新打开时按日志恢复，整理过的页面中的数据不受影响
+        dm.flushLog();
+        dm.cleaner.shutdown();
+        dm = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*16, tm);
+        for (int i = 0; i < 1500; i ++) {
+            if(i < 1000 && i % 2 == 0) {
+                DataItem di = dm.read(uids.get(i));
+                // 释放的槽可能已被新插入的数据复用
+                assertTrue(di == null || uids.indexOf(uids.get(i)) != uids.lastIndexOf(uids.get(i)));
+                if(di != null) {
+                    di.release();
+                }
+            } else {
+                assertRecord(dm, uids.get(i), i);
+            }
+        }
+        dm.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testInsertNearlyFullPageRow() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*16, tm);
+        // 插入一条小数据后页面仍在最后一个区间，但放不下接近一整页的数据，需要使用新页面
+        long small = dm.insert(0, new byte[8]);
+        byte[] large = new byte[PageX.MAX_FREE_SPACE - 10];
+        Arrays.fill(large, (byte)7);
+        long uid = dm.insert(0, large);
+        assertNotEquals(small >>> 32, uid >>> 32);
+        DataItem di = dm.read(uid);
+        SubArray sa = di.data();
+        assertArrayEquals(large, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        // 小数据仍然可以放进第一个页面
+        assertEquals(small >>> 32, dm.insert(0, new byte[8]) >>> 32);
+        dm.close();
+    }
+
+    @Test
+    public void testRedoUpdateOnNewerPage() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*16, tm);
+        long a = dm.insert(0, record(99));
+        long d = dm.insert(0, record(1));
+        // 从检查点开始恢复，插入a的日志不再重做，槽不会被改回a的位置
+        assertTrue(dm.cleaner.checkpoint());
+        DataItem di = dm.read(a);
+        di.before();
+        SubArray sa = di.data();
+        Arrays.fill(sa.raw, sa.start, sa.end, (byte)5);
+        di.after(0);
+        di.release();
+        // 释放后槽被一条更短的数据复用，新数据位于d之前
+        dm.free(a);
+        long b = dm.insert(0, record(0));
+        assertEquals(a, b);
+
+        // 写回页面后模拟崩溃，恢复时页面比日志新，重做更新不能覆盖d
+        dm.flushLog();
+        dm.cleaner.shutdown();
+        dm.pc.flushDirtyPages();
+        dm = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*16, tm);
+        assertRecord(dm, d, 1);
+        assertRecord(dm, b, 0);
+        dm.close();
+    }
+
+    @Test
+    public void testInsertBatchAndRecover() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*16, tm);
+        List<byte[]> data = new ArrayList<>();
+        for (int i = 0; i < 1000; i ++) {
+            data.add(record(i));
+        }
+        List<Long> uids = dm.insertBatch(0, data);
+        assertEquals(1000, uids.size());
+        for (int i = 0; i < 1000; i ++) {
+            assertRecord(dm, uids.get(i), i);
+        }
+        // 每个页面尽量放满
+        int pages = dm.pc.getPageNumber();
+        assertTrue(pages <= 1 + (1000 * (3 + 100 + PageX.SLOT_SIZE)) / PageX.MAX_FREE_SPACE + 1);
+
+        // 日志落盘后不关闭，模拟崩溃，重新打开时按批量插入日志恢复
+        dm.flushLog();
+        dm.cleaner.shutdown();
+        dm = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*16, tm);
+        for (int i = 0; i < 1000; i ++) {
+            assertRecord(dm, uids.get(i), i);
+        }
+        dm.close();
+    }
+
+    private static byte[] readAll(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = dm.openData(di)) {
+            byte[] buf = new byte[1000];
+            int n;
+            while((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        }
+        di.release();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testOverflowAndRecover() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*16, tm);
+        byte[] large = new byte[PageCache.PAGE_SIZE * 5 + 123];
+        for (int i = 0; i < large.length; i ++) {
+            large[i] = (byte)(i * 31);
+        }
+        long small = dm.insert(0, record(1));
+        long uid = dm.insert(0, large);
+        assertArrayEquals(large, readAll(dm, uid));
+        assertArrayEquals(record(1), readAll(dm, small));
+        // 行内只保留开头的部分，可以原地修改
+        DataItem di = dm.read(uid);
+        assertTrue(di.isOverflow());
+        SubArray sa = di.data();
+        assertArrayEquals(Arrays.copyOf(large, DataItem.INLINE_SIZE), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+
+        // 释放后溢出页的空间被之后的大数据复用
+        int pages = dm.pc.getPageNumber();
+        dm.free(uid);
+        uid = dm.insert(0, large);
+        assertEquals(pages, dm.pc.getPageNumber());
+
+        // 日志落盘后不关闭，模拟崩溃，重新打开时按日志恢复溢出块
+        dm.flushLog();
+        dm.cleaner.shutdown();
+        dm = (DataManagerImpl)DataManager.open(path, PageCache.PAGE_SIZE*16, tm);
+        assertArrayEquals(large, readAll(dm, uid));
+        assertArrayEquals(record(1), readAll(dm, small));
+        dm.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testOverflowWholeChunks() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*16, tm);
+        // 溢出部分正好是整数个溢出块，每块占满一页，不能选择已经放了一条小数据的页面
+        long small = dm.insert(0, new byte[8]);
+        byte[] large = new byte[DataItem.INLINE_SIZE + 2 * DataManagerImpl.OVERFLOW_CHUNK_SIZE];
+        for (int i = 0; i < large.length; i ++) {
+            large[i] = (byte)(i * 17);
+        }
+        long uid = dm.insert(0, large);
+        assertArrayEquals(large, readAll(dm, uid));
+        assertArrayEquals(new byte[8], readAll(dm, small));
+        dm.close();
+    }
+
+    @Test
+    public void testConcurrentInsert() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*32, tm);
+        int threads = 8, perThread = 500;
+        long[] uids = new long[threads * perThread];
+        List<Thread> list = new ArrayList<>();
+        List<Throwable> errors = new CopyOnWriteArrayList<>();
+        for (int t = 0; t < threads; t ++) {
+            final int base = t * perThread;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (int i = base; i < base + perThread; i ++) {
+                        uids[i] = dm.insert(0, record(i));
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+            list.add(thread);
+            thread.start();
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+        assertTrue(errors.isEmpty());
+        for (int i = 0; i < uids.length; i ++) {
+            assertRecord(dm, uids[i], i);
+        }
+        dm.close();
+    }
+
+    private void insertReadReopen(PageCacheConfig config) throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create(path, config, tm);
+        List<Long> uids = new ArrayList<>();
+        int n = 3000;
+        for (int i = 0; i < n; i ++) {
+            uids.add(dm.insert(0, record(i)));
+        }
+        // 数据量远大于缓存容量，读取时页面会被反复驱逐和重新加载
+        for (int i = n - 1; i >= 0; i --) {
+            assertRecord(dm, uids.get(i), i);
+        }
+        dm.close();
+
+        dm = DataManager.open(path, config, tm);
+        for (int i = 0; i < n; i ++) {
+            assertRecord(dm, uids.get(i), i);
+        }
+        dm.close();
+    }
+}
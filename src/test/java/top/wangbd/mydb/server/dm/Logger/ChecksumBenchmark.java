@@ -0,0 +1,110 @@
+package top.wangbd.mydb.server.dm.Logger;
+
+import top.wangbd.mydb.server.utils.Crc32c;
+
+import java.util.Random;
+import java.util.zip.Checksum;
+
+/**
+ * 日志校验和的吞吐量测试
+ * <p>
+ * 对比原先的按字节多项式校验和（每条日志计算两遍：日志自身的校验和，以及累加到全局XChecksum）
+ * 和当前的CRC32C（日志数据计算一遍，段校验和只累加8字节的日志头），
+ * 另外给出查表实现的CRC32C（JDK 8 上使用）作为参考。结果为每秒处理的日志数据量。
+ * </p>
+ * 运行：mvn -q test-compile && java -cp target/classes:target/test-classes
+ *      top.wangbd.mydb.server.dm.Logger.ChecksumBenchmark [每轮毫秒数]
+ */
+public class ChecksumBenchmark {
+    private static final int SEED = 13331;
+    private static final int[] SIZES = {64, 512, 8192};
+    private static final int RECORDS = 1024;
+
+    interface Method {
+        int run(byte[][] records);
+    }
+
+    /** 原先的实现：xCheck * SEED + b，日志自身和全局XChecksum各算一遍 */
+    static int polynomial(byte[][] records) {
+        int xChecksum = 0;
+        for (byte[] r : records) {
+            int check = 0;
+            for (byte b : r) {
+                check = check * SEED + b;
+            }
+            xChecksum ^= check;
+            for (byte b : r) {
+                xChecksum = xChecksum * SEED + b;
+            }
+        }
+        return xChecksum;
+    }
+
+    /** 当前的实现：日志数据的CRC32C，加上段校验和累加日志头 */
+    static int crc32c(byte[][] records, Checksum segment) {
+        segment.reset();
+        byte[] header = new byte[8];
+        for (byte[] r : records) {
+            int check = Crc32c.checksum(r);
+            header[4] = (byte)(check >>> 24);
+            header[5] = (byte)(check >>> 16);
+            header[6] = (byte)(check >>> 8);
+            header[7] = (byte)check;
+            segment.update(header, 0, header.length);
+        }
+        return (int)segment.getValue();
+    }
+
+    public static void main(String[] args) {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 1000;
+        Checksum jdk = Crc32c.create();
+        Checksum table = new Crc32c.TableCrc32c();
+
+        System.out.printf("%d records per batch, %d ms per run, %s%n", RECORDS, millis, jdk.getClass().getName());
+        System.out.printf("%-8s %16s %16s %16s%n", "size", "polynomial MB/s", "crc32c MB/s", "table MB/s");
+        for (int size : SIZES) {
+            byte[][] records = new byte[RECORDS][size];
+            Random random = new Random(size);
+            for (byte[] r : records) {
+                random.nextBytes(r);
+            }
+            // 预热JIT
+            run(ChecksumBenchmark::polynomial, records, millis);
+            run(r -> crc32c(r, jdk), records, millis);
+            run(r -> tableCrc(r, table), records, millis);
+
+            double polynomial = run(ChecksumBenchmark::polynomial, records, millis);
+            double crc = run(r -> crc32c(r, jdk), records, millis);
+            double tab = run(r -> tableCrc(r, table), records, millis);
+            System.out.printf("%-8d %16.1f %16.1f %16.1f%n", size, polynomial, crc, tab);
+        }
+    }
+
+    /** 查表实现的CRC32C，只计算日志数据 */
+    static int tableCrc(byte[][] records, Checksum table) {
+        int result = 0;
+        for (byte[] r : records) {
+            table.reset();
+            table.update(r, 0, r.length);
+            result ^= (int)table.getValue();
+        }
+        return result;
+    }
+
+    /** 在millis毫秒内反复计算，返回每秒处理的MB数 */
+    private static double run(Method method, byte[][] records, long millis) {
+        long bytes = 0;
+        int sink = 0;
+        long start = System.nanoTime();
+        long deadline = start + millis * 1_000_000;
+        while(System.nanoTime() < deadline) {
+            sink ^= method.run(records);
+            bytes += (long)records.length * records[0].length;
+        }
+        long elapsed = System.nanoTime() - start;
+        if(sink == 42) {
+            System.out.print("");
+        }
+        return bytes / 1048576.0 / (elapsed / 1e9);
+    }
+}
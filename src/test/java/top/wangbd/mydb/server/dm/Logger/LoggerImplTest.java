@@ -0,0 +1,162 @@
+package top.wangbd.mydb.server.dm.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import top.wangbd.mydb.server.utils.Parser;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class LoggerImplTest {
+    private File dir;
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("mydb-log").toFile();
+        path = dir.getAbsolutePath() + File.separator + "log";
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Logger lg = Logger.create(path);
+        int threads = 16, perThread = 200;
+        List<Thread> list = new ArrayList<>();
+        for (int t = 0; t < threads; t ++) {
+            final int base = t * perThread;
+            Thread thread = new Thread(() -> {
+                long last = 0;
+                for (int i = base; i < base + perThread; i ++) {
+                    long lsn = lg.log(Parser.int2Byte(i));
+                    // LSN单调递增
+                    assertTrue(lsn > last);
+                    last = lsn;
+                    // 模拟提交，等待自己的日志落盘
+                    lg.flush(lsn);
+                }
+            });
+            list.add(thread);
+            thread.start();
+        }
+        for (Thread thread : list) {
+            thread.join();
+        }
+        // 并发追加的日志合并落盘，force的次数远少于日志条数
+        Matcher m = Pattern.compile("records (\\d+), fsyncs (\\d+)").matcher(lg.stats());
+        assertTrue(m.find());
+        assertEquals(threads * perThread, Long.parseLong(m.group(1)));
+        assertTrue(Long.parseLong(m.group(2)) < threads * perThread);
+        assertEquals(lg.end() + LoggerImpl.SEG_HEADER_SIZE, new File(path + ".log.0000000000000000").length());
+        lg.close();
+
+        // 重新打开时XChecksum校验通过，所有日志都能读出
+        Logger reopened = Logger.open(path);
+        Set<Integer> seen = new HashSet<>();
+        reopened.rewind();
+        byte[] log;
+        while((log = reopened.next()) != null) {
+            seen.add(Parser.parseInt(log));
+        }
+        assertEquals(threads * perThread, seen.size());
+        reopened.close();
+    }
+
+    @Test
+    public void testLogWithoutFlushAndWrapAround() throws Exception {
+        Logger lg = Logger.create(path);
+        // 不等待落盘时，缓冲区写满才会写出；总量超过缓冲区，环形缓冲区会多次回绕
+        byte[] data = new byte[1000];
+        int count = LoggerImpl.BUFFER_SIZE / 1000 * 3;
+        long lsn = 0;
+        for (int i = 0; i < count; i ++) {
+            System.arraycopy(Parser.int2Byte(i), 0, data, 0, 4);
+            lsn = lg.log(data);
+        }
+        lg.flush(lsn);
+        lg.close();
+
+        Logger reopened = Logger.open(path);
+        reopened.rewind();
+        for (int i = 0; i < count; i ++) {
+            byte[] log = reopened.next();
+            assertNotNull(log);
+            assertEquals(i, Parser.parseInt(log));
+        }
+        assertNull(reopened.next());
+        reopened.close();
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        int segmentSize = 64 * 1024;
+        Logger lg = LoggerImpl.create(path, segmentSize);
+        byte[] data = new byte[1000];
+        int count = 500;
+        long[] lsns = new long[count];
+        for (int i = 0; i < count; i ++) {
+            System.arraycopy(Parser.int2Byte(i), 0, data, 0, 4);
+            lsns[i] = lg.log(data);
+        }
+        lg.flush(lsns[count - 1]);
+        // 日志不跨段，每个段不超过段大小
+        File[] segments = dir.listFiles((d, name) -> name.startsWith("log.log."));
+        assertTrue(segments.length >= count * 1008 / segmentSize);
+        for (File f : segments) {
+            assertTrue(f.length() <= segmentSize);
+        }
+
+        // 丢弃前一半日志所在的段，之后的日志从剩余的第一个段开始读取
+        lg.truncateBefore(lsns[count / 2]);
+        assertTrue(dir.listFiles((d, name) -> name.startsWith("log.log.")).length < segments.length);
+        lg.close();
+
+        // 最后一个段末尾写了一半的日志在打开时被移除
+        File[] left = dir.listFiles((d, name) -> name.startsWith("log.log."));
+        Arrays.sort(left);
+        File tail = left[left.length - 1];
+        try (RandomAccessFile raf = new RandomAccessFile(tail, "rw")) {
+            raf.seek(raf.length());
+            raf.write(Parser.int2Byte(1000));
+            raf.write(new byte[100]);
+        }
+        Logger reopened = LoggerImpl.open(path, segmentSize);
+        assertEquals(lsns[count - 1], reopened.end());
+        reopened.rewind();
+        byte[] log = reopened.next();
+        int first = Parser.parseInt(log);
+        assertTrue(first > 0 && first <= count / 2);
+        int last = first;
+        while((log = reopened.next()) != null) {
+            assertEquals(last + 1, Parser.parseInt(log));
+            last ++;
+        }
+        assertEquals(count - 1, last);
+
+        // 从指定的LSN开始读取
+        reopened.rewind(lsns[count - 11]);
+        assertEquals(count - 10, Parser.parseInt(reopened.next()));
+        reopened.close();
+    }
+}
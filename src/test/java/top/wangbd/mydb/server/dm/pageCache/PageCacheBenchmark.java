@@ -0,0 +1,97 @@
+package top.wangbd.mydb.server.dm.pageCache;
+
+import top.wangbd.mydb.server.dm.page.Page;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 页面缓存并发未命中的吞吐量测试
+ * <p>
+ * 数据文件远大于缓存，多个线程随机读取页面，几乎每次都未命中缓存，需要从文件读取。
+ * 对比带位置的读（当前实现）和在一把全局锁下读（原先 fileLock 的做法）在不同线程数下的吞吐量。
+ * </p>
+ * 运行：mvn -q test-compile && java -cp target/classes:target/test-classes
+ *      top.wangbd.mydb.server.dm.pageCache.PageCacheBenchmark [页数] [每轮毫秒数]
+ */
+public class PageCacheBenchmark {
+    private static final int CACHE_PAGES = 64;
+
+    /** 模拟原先的实现：所有文件读取都在同一把锁下进行 */
+    static class SerializedPageCache extends PageCacheImpl {
+        private final Object fileLock = new Object();
+
+        SerializedPageCache(RandomAccessFile file, FileChannel fc, int maxResource) {
+            super(file, fc, maxResource);
+        }
+
+        @Override
+        protected int readPage(long offset, byte[] frame) {
+            synchronized (fileLock) {
+                return super.readPage(offset, frame);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        File f = File.createTempFile("mydb-bench", PageCacheImpl.DB_SUFFIX);
+        f.deleteOnExit();
+        try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            byte[] page = new byte[PageCache.PAGE_SIZE];
+            Random random = new Random(1);
+            for (int i = 0; i < pages; i ++) {
+                random.nextBytes(page);
+                raf.write(page);
+            }
+        }
+
+        // 预热JIT和操作系统的文件缓存
+        run(f, false, 4, pages, millis);
+        run(f, true, 4, pages, millis);
+
+        System.out.printf("%d pages, cache %d pages, %d ms per run%n", pages, CACHE_PAGES, millis);
+        System.out.printf("%-8s %16s %16s%n", "threads", "positional op/s", "serialized op/s");
+        for (int threads = 1; threads <= 16; threads *= 2) {
+            long positional = run(f, false, threads, pages, millis);
+            long serialized = run(f, true, threads, pages, millis);
+            System.out.printf("%-8d %16d %16d%n", threads, positional, serialized);
+        }
+    }
+
+    private static long run(File f, boolean serialized, int threads, int pages, long millis) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        FileChannel fc = raf.getChannel();
+        PageCacheImpl pc = serialized ? new SerializedPageCache(raf, fc, CACHE_PAGES)
+                                      : new PageCacheImpl(raf, fc, CACHE_PAGES);
+        LongAdder ops = new LongAdder();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.currentTimeMillis() + millis;
+        for (int t = 0; t < threads; t ++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while(System.currentTimeMillis() < deadline) {
+                        Page pg = pc.getPage(random.nextInt(pages) + 1);
+                        pg.release();
+                        ops.increment();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                } finally {
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        pc.close();
+        return ops.sum() * 1000 / millis;
+    }
+}
@@ -0,0 +1,328 @@
+package top.wangbd.mydb.server.dm.pageCache;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import top.wangbd.mydb.common.Error;
+import top.wangbd.mydb.server.dm.page.Page;
+import top.wangbd.mydb.server.dm.page.PageImpl;
+
+import javax.management.MBeanServer;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class PageCacheImplTest {
+    private static final int PAGES = 64;
+
+    private File file;
+    private CountingPageCache pc;
+
+    /** 记录从文件读取页面的次数 */
+    static class CountingPageCache extends PageCacheImpl {
+        AtomicInteger reads = new AtomicInteger();
+        AtomicIntegerArray readsOf = new AtomicIntegerArray(PAGES + 1);
+
+        CountingPageCache(RandomAccessFile file, FileChannel fc, int maxResource) {
+            super(file, fc, maxResource);
+        }
+
+        @Override
+        protected int readPage(long offset, byte[] frame) {
+            reads.incrementAndGet();
+            readsOf.incrementAndGet((int)(offset / PageCache.PAGE_SIZE) + 1);
+            return super.readPage(offset, frame);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("mydb-pc", PageCacheImpl.DB_SUFFIX);
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            byte[] page = new byte[PageCache.PAGE_SIZE];
+            for (int i = 1; i <= PAGES; i ++) {
+                page[0] = (byte)i;
+                raf.write(page);
+            }
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        pc = new CountingPageCache(raf, raf.getChannel(), 32);
+    }
+
+    @After
+    public void tearDown() {
+        pc.close();
+        file.delete();
+    }
+
+    private void awaitReads(int n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(pc.reads.get() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private void touch(int pgno) throws Exception {
+        Page pg = pc.getPage(pgno);
+        assertEquals((byte)pgno, pg.getData()[0]);
+        pg.release();
+    }
+
+    @Test
+    public void testReadAheadHint() throws Exception {
+        pc.readAhead(10, 8);
+        awaitReads(8);
+        // 预读过的页面直接命中缓存，不再从文件读取
+        for (int i = 10; i < 18; i ++) {
+            touch(i);
+            assertEquals(1, pc.readsOf.get(i));
+        }
+    }
+
+    @Test
+    public void testSequentialReadAhead() throws Exception {
+        touch(1);
+        touch(2);
+        // 检测到顺序访问后，之后的页面在被访问之前就已异步读入
+        int end = 2 + PageCache.READ_AHEAD_PAGES;
+        awaitReads(end);
+        for (int i = 3; i <= end; i ++) {
+            assertEquals(1, pc.readsOf.get(i));
+        }
+        for (int i = 3; i <= end; i ++) {
+            touch(i);
+            assertEquals(1, pc.readsOf.get(i));
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        touch(40);
+        touch(40);
+        PageCacheMetrics metrics = pc.metrics();
+        assertEquals(1, metrics.getHits());
+        assertEquals(1, metrics.getMisses());
+        assertEquals(PageCache.PAGE_SIZE, metrics.getReadBytes());
+        assertEquals(1, metrics.getReadCount());
+        assertEquals(1, metrics.getResidentPages());
+
+        Page pg = pc.getPage(40);
+        pg.setDirty(true);
+        pg.release();
+        assertEquals(1, metrics.getDirtyPages());
+        assertEquals(0, pc.flushDirtyPages());
+        assertEquals(0, metrics.getDirtyPages());
+        assertEquals(1, metrics.getFsyncCount());
+        assertTrue(metrics.report().contains("hit ratio"));
+
+        // 同样的指标可以通过JMX读取
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(2L, server.getAttribute(metrics.name(), "Hits"));
+        assertEquals((long)PageCache.PAGE_SIZE, server.getAttribute(metrics.name(), "WriteBytes"));
+    }
+
+    @Test
+    public void testFlushPinsBoundedBatch() throws Exception {
+        // 缓存中全是脏页，写回期间前台读取新页面仍然可以驱逐还没有轮到的脏页，不会等待超时
+        for (int i = 1; i <= 32; i ++) {
+            Page pg = pc.getPage(i);
+            pg.setDirty(true);
+            pg.release();
+        }
+        AtomicInteger loaded = new AtomicInteger();
+        pc.setLogFlusher(lsn -> {
+            if(loaded.compareAndSet(0, -1)) {
+                try {
+                    touch(40);
+                    loaded.set(1);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        assertEquals(0, pc.flushDirtyPages());
+        assertEquals(1, loaded.get());
+        assertEquals(0, pc.metrics().getDirtyPages());
+    }
+
+    private static byte[] marked(int pgno) {
+        byte[] data = new byte[PageCache.PAGE_SIZE];
+        data[0] = (byte)pgno;
+        data[1] = 1; // 已分配的页面不能是全零
+        data[PageImpl.OF_CHECKSUM - 1] = (byte)(pgno >>> 8); // 页尾是页面校验和，标记放在它之前
+        return data;
+    }
+
+    private static void assertMarked(PageCache cache, int pgno) throws Exception {
+        Page pg = cache.getPage(pgno);
+        assertEquals((byte)pgno, pg.getData()[0]);
+        assertEquals((byte)(pgno >>> 8), pg.getData()[PageImpl.OF_CHECKSUM - 1]);
+        pg.release();
+    }
+
+    @Test
+    public void testLargeFileOffsets() throws Exception {
+        // 稀疏文件，超过4G的页面偏移不能溢出
+        File big = File.createTempFile("mydb-big", PageCacheImpl.DB_SUFFIX);
+        int pages = (int)((9L << 29) / PageCache.PAGE_SIZE);
+        try {
+            RandomAccessFile raf = new RandomAccessFile(big, "rw");
+            raf.setLength((long)pages * PageCache.PAGE_SIZE);
+            PageCacheImpl cache = new PageCacheImpl(raf, raf.getChannel(), 32);
+            assertEquals(pages, cache.getPageNumber());
+            int pgno = cache.newPage(marked(pages + 1));
+            assertEquals(pages + 1, pgno);
+            assertMarked(cache, pgno);
+            cache.close();
+            assertTrue(big.length() >= (long)(pages + 1) * PageCache.PAGE_SIZE);
+        } finally {
+            big.delete();
+        }
+    }
+
+    @Test
+    public void testExtentAllocation() throws Exception {
+        File dir = Files.createTempDirectory("mydb-extent").toFile();
+        String path = dir.getAbsolutePath() + File.separator + "extent";
+        PageCacheConfig config = new PageCacheConfig(PageCache.PAGE_SIZE * 16);
+        try {
+            PageCache cache = PageCache.create(path, config);
+            for (int i = 1; i <= PageCacheImpl.EXTENT_PAGES + 1; i ++) {
+                assertEquals(i, cache.newPage(marked(i)));
+            }
+            // 两个预分配区，各扩展并刷盘一次
+            assertEquals(2L * PageCacheImpl.EXTENT_PAGES * PageCache.PAGE_SIZE, new File(path + ".db").length());
+            assertEquals(2, cache.metrics().getFsyncCount());
+            cache.close();
+
+            // 末尾预分配但没有使用的页面不计入页数
+            cache = PageCache.open(path, config);
+            assertEquals(PageCacheImpl.EXTENT_PAGES + 1, cache.getPageNumber());
+            assertEquals(PageCacheImpl.EXTENT_PAGES + 2, cache.newPage(marked(PageCacheImpl.EXTENT_PAGES + 2)));
+            assertMarked(cache, PageCacheImpl.EXTENT_PAGES + 2);
+            cache.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testPageChecksum() throws Exception {
+        File dir = Files.createTempDirectory("mydb-crc").toFile();
+        String path = dir.getAbsolutePath() + File.separator + "crc";
+        PageCacheConfig config = new PageCacheConfig(PageCache.PAGE_SIZE * 16);
+        config.pageChecksum = true;
+        try {
+            PageCache cache = PageCache.create(path, config);
+            cache.newPage(marked(1));
+            cache.newPage(marked(2));
+            cache.close();
+
+            // 损坏第2页中的一个字节，读入时校验失败
+            try(RandomAccessFile raf = new RandomAccessFile(path + ".db", "rw")) {
+                raf.seek(PageCache.PAGE_SIZE + 100);
+                raf.write(7);
+            }
+            cache = PageCache.open(path, config);
+            assertMarked(cache, 1);
+            try {
+                cache.getPage(2);
+                fail();
+            } catch (Exception e) {
+                assertSame(Error.BadPageChecksumException, e);
+            }
+            cache.close();
+
+            // 不开启页面校验时不检查
+            cache = PageCache.open(path, new PageCacheConfig(PageCache.PAGE_SIZE * 16));
+            assertMarked(cache, 2);
+            cache.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testSegmentedPageCache() throws Exception {
+        File dir = Files.createTempDirectory("mydb-seg").toFile();
+        String path = dir.getAbsolutePath() + File.separator + "seg";
+        PageCacheConfig config = new PageCacheConfig(PageCache.PAGE_SIZE * 16);
+        config.segmentSize = PageCache.PAGE_SIZE * 4;
+        try {
+            PageCache cache = PageCache.create(path, config);
+            for (int i = 1; i <= 10; i ++) {
+                assertEquals(i, cache.newPage(marked(i)));
+            }
+            assertEquals(4 * PageCache.PAGE_SIZE, new File(path + ".db").length());
+            assertEquals(4 * PageCache.PAGE_SIZE, new File(path + ".1.db").length());
+            // 最后一段预分配到段尾
+            assertEquals(4 * PageCache.PAGE_SIZE, new File(path + ".2.db").length());
+            assertFalse(new File(path + ".3.db").exists());
+            for (int i = 1; i <= 10; i ++) {
+                assertMarked(cache, i);
+            }
+            cache.truncateByBgno(5);
+            assertFalse(new File(path + ".2.db").exists());
+            assertEquals(PageCache.PAGE_SIZE, new File(path + ".1.db").length());
+            cache.close();
+
+            cache = PageCache.open(path, config);
+            assertEquals(5, cache.getPageNumber());
+            for (int i = 1; i <= 5; i ++) {
+                assertMarked(cache, i);
+            }
+            cache.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * 写满超过4G的数据，耗时较长，默认跳过。运行：mvn test -Dtest=PageCacheImplTest -Dmydb.scale=true
+     */
+    @Test
+    public void testFillPastFourGigabytes() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean("mydb.scale"));
+        File dir = Files.createTempDirectory("mydb-scale").toFile();
+        String path = dir.getAbsolutePath() + File.separator + "scale";
+        PageCacheConfig config = new PageCacheConfig(64L << 20);
+        config.segmentSize = 1L << 30;
+        int pages = (int)((9L << 29) / PageCache.PAGE_SIZE);
+        try {
+            PageCache cache = PageCache.create(path, config);
+            for (int i = 1; i <= pages; i ++) {
+                cache.newPage(marked(i));
+            }
+            cache.close();
+
+            cache = PageCache.open(path, config);
+            assertEquals(pages, cache.getPageNumber());
+            for (int i = 1; i <= pages; i += 997) {
+                assertMarked(cache, i);
+            }
+            assertMarked(cache, pages);
+            cache.close();
+        } finally {
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package top.wangbd.mydb.server.dm.pageIndex;
+
+import org.junit.Test;
+import top.wangbd.mydb.server.dm.pageCache.PageCache;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class PageIndexTest {
+
+    private PageIndex newIndex() throws Exception {
+        File dir = Files.createTempDirectory("mydb-pi").toFile();
+        dir.deleteOnExit();
+        return new PageIndex(FreeSpaceMap.open(dir.getAbsolutePath() + File.separator + "pi"));
+    }
+
+    @Test
+    public void testStaleEntriesBounded() throws Exception {
+        PageIndex pi = newIndex();
+        int pages = 10;
+        for (int i = 1; i <= pages; i ++) {
+            pi.add(i, 1000);
+        }
+        // 空闲空间反复在两个区间之间变化，每次更新都留下一个过期项
+        for (int round = 0; round < 10000; round ++) {
+            for (int i = 1; i <= pages; i ++) {
+                pi.update(i, round % 2 == 0 ? 3000 : 1000);
+            }
+        }
+        assertTrue(String.valueOf(pi.entryCount()), pi.entryCount() <= 2 * pages + 64);
+
+        // 每个页面只会被选中一次，选中的是当前的空闲空间
+        for (int i = 1; i <= pages; i ++) {
+            PageInfo info = pi.select(500);
+            assertNotNull(info);
+            assertEquals(1000, info.freeSpace);
+        }
+        assertNull(pi.select(500));
+    }
+
+    @Test
+    public void testSelectFromTopBucket() throws Exception {
+        PageIndex pi = newIndex();
+        int top = PageCache.PAGE_SIZE / 40 * 40;
+        for (int i = 1; i <= 5; i ++) {
+            pi.add(i, top);
+        }
+        pi.add(6, top + 10);
+        // 空间不够的页面留在索引中，只选中第一个空间足够的页面
+        PageInfo info = pi.select(top + 5);
+        assertNotNull(info);
+        assertEquals(6, info.pgno);
+        assertNull(pi.select(top + 5));
+        assertEquals(5, pi.entryCount());
+        assertNotNull(pi.select(top));
+    }
+}
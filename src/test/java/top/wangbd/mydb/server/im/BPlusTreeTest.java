@@ -31,6 +31,11 @@ public class BPlusTreeTest {
         }
 
         assert new File("E:\\temp\\TestTreeSingle.db").delete();
-        assert new File("E:\\temp\\TestTreeSingle.log").delete();
+        // 日志按段存放，删除所有段文件
+        File[] segments = new File(".").listFiles((dir, name) -> name.startsWith("E:\\temp\\TestTreeSingle.log."));
+        assert segments.length > 0;
+        for (File f : segments) {
+            assert f.delete();
+        }
     }
 }
@@ -0,0 +1,168 @@
+package top.wangbd.mydb.server.tbm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import top.wangbd.mydb.server.dm.DataManager;
+import top.wangbd.mydb.server.dm.pageCache.PageCache;
+import top.wangbd.mydb.server.parser.statement.*;
+import top.wangbd.mydb.server.tm.TransactionManager;
+import top.wangbd.mydb.server.vm.VersionManager;
+import top.wangbd.mydb.server.vm.VersionManagerImpl;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class VacuumTest {
+    private File dir;
+    private String path;
+    private TransactionManager tm;
+    private DataManager dm;
+    private TableManagerImpl tbm;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("mydb-tbm").toFile();
+        path = dir.getAbsolutePath() + File.separator + "tbm";
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, PageCache.PAGE_SIZE*64, tm);
+        VersionManager vm = new VersionManagerImpl(tm, dm);
+        tbm = (TableManagerImpl)TableManager.create(path, vm, dm);
+    }
+
+    @After
+    public void tearDown() {
+        tbm.close();
+        dm.close();
+        tm.close();
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private void createTable() throws Exception {
+        Create create = new Create();
+        create.tableName = "t";
+        create.fieldName = new String[]{"id", "v"};
+        create.fieldType = new String[]{"int32", "string"};
+        create.index = new String[]{"id"};
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.create(xid, create);
+        tbm.commit(xid);
+    }
+
+    private void insert(int id, String v) throws Exception {
+        Insert insert = new Insert();
+        insert.tableName = "t";
+        insert.values = new String[]{String.valueOf(id), v};
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.insert(xid, insert);
+        tbm.commit(xid);
+    }
+
+    private void updateAll(String v) throws Exception {
+        Update update = new Update();
+        update.tableName = "t";
+        update.fieldName = "v";
+        update.value = v;
+        long xid = tbm.begin(new Begin()).xid;
+        tbm.update(xid, update);
+        tbm.commit(xid);
+    }
+
+    private String selectAll(long xid) throws Exception {
+        Select select = new Select();
+        select.tableName = "t";
+        select.fields = new String[]{"*"};
+        return new String(tbm.read(xid, select));
+    }
+
+    @Test
+    public void testVacuumReclaimsDeadVersions() throws Exception {
+        createTable();
+        int rows = 500;
+        for (int i = 0; i < rows; i ++) {
+            insert(i, "v0");
+        }
+        updateAll("v1");
+        tbm.vacuum.runOnce();
+        tbm.vacuum.runOnce();
+        long size = new File(path + ".db").length();
+
+        // 每轮更新产生的旧版本被清理后，新版本复用回收的空间，数据文件不再增长
+        for (int round = 2; round < 10; round ++) {
+            updateAll("v" + round);
+            tbm.vacuum.runOnce();
+            tbm.vacuum.runOnce();
+        }
+        assertTrue(new File(path + ".db").length() <= size * 2);
+        String stats = tbm.vacuum.stats();
+        assertTrue(stats, stats.contains("removed " + rows * 9 + ", freed " + rows * 9 + ", pending 0"));
+
+        long xid = tbm.begin(new Begin()).xid;
+        String result = selectAll(xid);
+        tbm.commit(xid);
+        assertEquals(rows, result.split("\n").length);
+        assertFalse(result.contains("v8"));
+        assertTrue(result.contains("v9"));
+    }
+
+    @Test
+    public void testVacuumKeepsVersionsVisibleToSnapshot() throws Exception {
+        createTable();
+        for (int i = 0; i < 10; i ++) {
+            insert(i, "old");
+        }
+        // 可重复读事务在更新之前开始，旧版本对它可见，不能被清理
+        Begin begin = new Begin();
+        begin.isRepeatableRead = true;
+        long reader = tbm.begin(begin).xid;
+        updateAll("new");
+        tbm.vacuum.runOnce();
+        tbm.vacuum.runOnce();
+        String result = selectAll(reader);
+        assertEquals(10, result.split("\n").length);
+        assertFalse(result.contains("new"));
+        tbm.commit(reader);
+
+        tbm.vacuum.runOnce();
+        tbm.vacuum.runOnce();
+        long xid = tbm.begin(new Begin()).xid;
+        result = selectAll(xid);
+        tbm.commit(xid);
+        assertEquals(10, result.split("\n").length);
+        assertFalse(result.contains("old"));
+    }
+
+    @Test
+    public void testVacuumScansIncrementally() throws Exception {
+        createTable();
+        int rows = 300;
+        for (int i = 0; i < rows; i ++) {
+            insert(i, "v0");
+        }
+        updateAll("v1");
+        // 每轮只检查一部分记录，多轮之后才扫描完整个索引
+        tbm.vacuum.scanLimit = 100;
+        tbm.vacuum.runOnce();
+        String stats = tbm.vacuum.stats();
+        assertTrue(stats, stats.contains("scanned 100,"));
+        for (int i = 0; i < 10; i ++) {
+            tbm.vacuum.runOnce();
+        }
+        stats = tbm.vacuum.stats();
+        assertTrue(stats, stats.contains("removed " + rows + ", freed " + rows + ", pending 0"));
+
+        long xid = tbm.begin(new Begin()).xid;
+        String result = selectAll(xid);
+        tbm.commit(xid);
+        assertEquals(rows, result.split("\n").length);
+        assertFalse(result.contains("v0"));
+    }
+}
@@ -0,0 +1,35 @@
+package top.wangbd.mydb.server.utils;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.*;
+
+public class Crc32cTest {
+    @Test
+    public void testKnownValue() {
+        byte[] data = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xE3069283, Crc32c.checksum(data));
+        Checksum table = new Crc32c.TableCrc32c();
+        table.update(data, 0, data.length);
+        assertEquals(0xE3069283, (int)table.getValue());
+    }
+
+    @Test
+    public void testTableMatchesJdk() {
+        // 查表实现与 java.util.zip.CRC32C 的结果相同，分多次累加与一次计算的结果相同
+        Random random = new Random(1);
+        byte[] data = new byte[10000];
+        random.nextBytes(data);
+        Checksum table = new Crc32c.TableCrc32c();
+        for (int len = 0; len <= data.length; len += 997) {
+            table.reset();
+            table.update(data, 0, len / 2);
+            table.update(data, len / 2, len - len / 2);
+            assertEquals(Crc32c.checksum(data, 0, len), (int)table.getValue());
+        }
+    }
+}